@@ -15,7 +15,6 @@
  */
 package org.toubassi.femtozip;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -24,6 +23,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -36,7 +36,9 @@ import org.toubassi.femtozip.models.GZipCompressionModel;
 import org.toubassi.femtozip.models.GZipDictionaryCompressionModel;
 import org.toubassi.femtozip.models.PureHuffmanCompressionModel;
 import org.toubassi.femtozip.models.VariableIntCompressionModel;
+import org.toubassi.femtozip.substring.PrefixHash;
 import org.toubassi.femtozip.substring.SubstringPacker;
+import org.toubassi.femtozip.util.FileDataInputStream;
 import org.toubassi.femtozip.util.StreamUtil;
 
 /**
@@ -66,8 +68,14 @@ import org.toubassi.femtozip.util.StreamUtil;
 public abstract class CompressionModel implements SubstringPacker.Consumer {
     
     protected byte[] dictionary;
-    protected SubstringPacker packer;
+    protected volatile SubstringPacker packer;
     private int maxDictionaryLength;
+    private long dictionaryMemoryBudget;
+    private double dictionaryCoverage = 1;
+    private int compressionLevel = 9;
+    private int hashBits;
+    private boolean persistDictionaryHash;
+    private PrefixHash loadedDictionaryHash;
 
     public static CompressionModel instantiateCompressionModel(String modelName) {
         if (modelName.indexOf('.') == -1) {
@@ -197,7 +205,9 @@ public abstract class CompressionModel implements SubstringPacker.Consumer {
             dictionary = Arrays.copyOfRange(dictionary, dictionary.length - maxDictionaryLength, dictionary.length);
         }
         this.dictionary = dictionary;
+        dictionaryCoverage = 1;
         packer = null;
+        loadedDictionaryHash = null;
     }
     
     public byte[] getDictionary() {
@@ -212,15 +222,134 @@ public abstract class CompressionModel implements SubstringPacker.Consumer {
         maxDictionaryLength = length;
     }
     
+    /**
+     * Limits building the dictionary to roughly the given number of bytes of
+     * memory (0, the default, for no limit), by building it from a random
+     * sample of the documents when they are too large.  The documents are read
+     * once to take the sample (see ReservoirSamplingDocumentList), and only
+     * the sample is held in memory.
+     */
+    public void setDictionaryMemoryBudget(long bytes) {
+        dictionaryMemoryBudget = bytes;
+    }
+    
+    public long getDictionaryMemoryBudget() {
+        return dictionaryMemoryBudget;
+    }
+    
+    /**
+     * The fraction of the document bytes the dictionary was last built from,
+     * which is less than 1 when it was built from a sample, and 1 when it
+     * was set or loaded.
+     */
+    public double getDictionaryCoverage() {
+        return dictionaryCoverage;
+    }
+    
+    /**
+     * compressionLevel is in range [0..9] where 0 means
+     * faster, and 9 means better/smaller.  The level bounds how much work
+     * the substring matcher does per byte, so lower levels give more
+     * predictable compression times on repetitive data.  The level only
+     * affects compression, so it is not saved with the model.
+     */
+    public void setCompressionLevel(int level) {
+        compressionLevel = Math.min(9, Math.max(0, level));
+        packer = null;
+    }
+    
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+    
+    /**
+     * Selects how the substring matcher hashes 4 byte prefixes.  0 (the
+     * default) is the original scheme, which hashes 23 bits of each prefix
+     * into a table sized to the data.  Otherwise prefixes are hashed
+     * multiplicatively into a table of 2^hashBits entries, which is faster
+     * and gives shorter hash chains on binary data.  Like the compression
+     * level this only affects compression, but it is saved with the model.
+     * 
+     * @see org.toubassi.femtozip.substring.PrefixHash
+     */
+    public void setHashBits(int hashBits) {
+        if (hashBits < 0 || hashBits > PrefixHash.MaxHashBits) {
+            throw new IllegalArgumentException("Hash bits " + hashBits + " out of range [0, " + PrefixHash.MaxHashBits + "]");
+        }
+        if (hashBits != this.hashBits) {
+            this.hashBits = hashBits;
+            packer = null;
+            loadedDictionaryHash = null;
+        }
+    }
+    
+    public int getHashBits() {
+        return hashBits;
+    }
+    
+    /**
+     * If true, save will include the hash tables for the dictionary in the
+     * model, so that loading the model doesn't require rehashing the dictionary.
+     * When loaded via loadModel(String), the tables are memory mapped, so
+     * they are shared by all processes using the same model file.
+     */
+    public void setPersistDictionaryHash(boolean persist) {
+        persistDictionaryHash = persist;
+    }
+    
+    public boolean getPersistDictionaryHash() {
+        return persistDictionaryHash;
+    }
+    
     protected SubstringPacker getSubstringPacker() {
+        // Read once, as another thread reconfiguring the model may clear it
+        SubstringPacker packer = this.packer;
         if (packer == null) {
-            packer = new SubstringPacker(getDictionary());
+            this.packer = packer = createSubstringPacker();
         }
         return packer;
     }
     
+    /**
+     * Creates a packer for the dictionary, as configured for this model.
+     * Subclasses can override this to configure it further for their format,
+     * and should clear packer if that configuration changes.
+     */
+    protected SubstringPacker createSubstringPacker() {
+        if (loadedDictionaryHash != null) {
+            return new SubstringPacker(getDictionary(), compressionLevel, new PrefixHash(loadedDictionaryHash, compressionLevel));
+        }
+        return new SubstringPacker(getDictionary(), compressionLevel, hashBits);
+    }
+    
+    /**
+     * Subclasses return true if their save stores code models in a form older
+     * versions can't load, so the model is saved with a newer format version
+     * which those versions will reject.
+     */
+    protected boolean savesCompactCodeModels() {
+        return false;
+    }
+    
     public void load(DataInputStream in) throws IOException {
-        in.readInt(); // file format version, currently unused.
+        // Poor mans file format version.  1 means the dictionary hash follows the dictionary.
+        // 2 means the hash bits and whether the dictionary hash follows are stored up front.
+        // 3 is laid out like 2, but the subclass may store its code models compactly.
+        int version = in.readInt();
+        if (version < 0 || version > 3) {
+            throw new IOException("Bad model in stream.  Unknown format version " + version);
+        }
+        
+        boolean hasHash = version == 1;
+        int hashBits = 0;
+        if (version >= 2) {
+            hashBits = in.readInt();
+            hasHash = in.readBoolean();
+            if (hashBits < 0 || hashBits > PrefixHash.MaxHashBits) {
+                throw new IOException("Bad model in stream.  Hash bits " + hashBits + " out of range");
+            }
+        }
+        setHashBits(hashBits);
         
         int dictionaryLength = in.readInt();
         
@@ -235,17 +364,33 @@ public abstract class CompressionModel implements SubstringPacker.Consumer {
             }
 
             setDictionary(dictionary);
+            
+            if (hasHash) {
+                loadedDictionaryHash = PrefixHash.load(this.dictionary, in, compressionLevel, hashBits);
+                persistDictionaryHash = true;
+            }
         }
     }
 
     public void save(DataOutputStream out) throws IOException {
-        out.writeInt(0); // Poor mans file format version
+        boolean saveHash = persistDictionaryHash && dictionary != null;
+        if (hashBits == 0 && !savesCompactCodeModels()) {
+            out.writeInt(saveHash ? 1 : 0); // Poor mans file format version
+        }
+        else {
+            out.writeInt(savesCompactCodeModels() ? 3 : 2);
+            out.writeInt(hashBits);
+            out.writeBoolean(saveHash);
+        }
         if (dictionary == null) {
             out.writeInt(-1);
         }
         else {
             out.writeInt(dictionary.length);
             out.write(dictionary);
+            if (saveHash) {
+                getSubstringPacker().getDictionaryHash().save(out);
+            }
         }
     }
     
@@ -260,8 +405,8 @@ public abstract class CompressionModel implements SubstringPacker.Consumer {
      */
     public static CompressionModel loadModel(String path) throws IOException {
         FileInputStream fileIn = new FileInputStream(path);
-        BufferedInputStream bufferedIn = new BufferedInputStream(fileIn);
-        DataInputStream in = new DataInputStream(bufferedIn);
+        // FileDataInputStream is buffered, and lets the model memory map large sections
+        DataInputStream in = new FileDataInputStream(fileIn);
         
         CompressionModel model = instantiateCompressionModel(in.readUTF());
         model.load(in);
@@ -312,6 +457,21 @@ public abstract class CompressionModel implements SubstringPacker.Consumer {
         getSubstringPacker().pack(data, this, null);
     }
     
+    /**
+     * Compresses data into dest starting at destOffset.  If the compressed
+     * data fits, its length is returned.  If not, -(required length) is
+     * returned, as with fz_compress in the native library, and the contents
+     * of dest past destOffset are undefined.
+     */
+    public int compress(byte[] data, byte[] dest, int destOffset) {
+        byte[] compressed = compress(data);
+        if (compressed.length > dest.length - destOffset) {
+            return -compressed.length;
+        }
+        System.arraycopy(compressed, 0, dest, destOffset, compressed.length);
+        return compressed.length;
+    }
+    
     /**
      * Decompresses the specified data.
      * @param data The data to decompress.
@@ -319,8 +479,61 @@ public abstract class CompressionModel implements SubstringPacker.Consumer {
      */
     public abstract byte[] decompress(byte[] compressedData);
     
+    /**
+     * Decompresses no more than the first maxOutputBytes of the data, which
+     * models that can stop decoding early do, to save decoding the rest.
+     */
+    public byte[] decompress(byte[] compressedData, int maxOutputBytes) {
+        if (maxOutputBytes < 0) {
+            throw new IllegalArgumentException("maxOutputBytes " + maxOutputBytes + " is negative");
+        }
+        byte[] data = decompress(compressedData);
+        return data.length > maxOutputBytes ? Arrays.copyOf(data, maxOutputBytes) : data;
+    }
+    
+    /**
+     * Decompresses srcLength bytes of src starting at srcOffset into dest
+     * starting at destOffset.  If the decompressed data fits, its length is
+     * returned.  If not, -(required length) is returned as with compress,
+     * and the contents of dest past destOffset are undefined.
+     */
+    public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+        byte[] data = decompress(Arrays.copyOfRange(src, srcOffset, srcOffset + srcLength));
+        if (data.length > dest.length - destOffset) {
+            return -data.length;
+        }
+        System.arraycopy(data, 0, dest, destOffset, data.length);
+        return data.length;
+    }
+    
+    /**
+     * Decompresses the bytes remaining in src into dest at its position.
+     * Either buffer may be direct.  If the decompressed data fits, src's
+     * position is moved to its limit, dest's position is advanced past the
+     * data, and its length is returned.  If not, -(required length) is
+     * returned, neither position changes, and the contents of dest past its
+     * position are undefined.
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dest) {
+        byte[] compressed = new byte[src.remaining()];
+        src.duplicate().get(compressed);
+        byte[] data = decompress(compressed);
+        if (data.length > dest.remaining()) {
+            return -data.length;
+        }
+        dest.put(data);
+        src.position(src.limit());
+        return data.length;
+    }
+    
     protected void buildDictionaryIfUnspecified(DocumentList documents) throws IOException {
         if (dictionary == null) {
+            dictionaryCoverage = 1;
+            if (dictionaryMemoryBudget > 0) {
+                ReservoirSamplingDocumentList sample = new ReservoirSamplingDocumentList(documents, DictionaryOptimizer.getMaxDocumentBytes(dictionaryMemoryBudget));
+                dictionaryCoverage = sample.getCoverage();
+                documents = sample;
+            }
             dictionary = (this.maxDictionaryLength != 0) ? buildDictionary(documents, this.maxDictionaryLength) : buildDictionary(documents);
         }
     }
@@ -339,11 +552,19 @@ public abstract class CompressionModel implements SubstringPacker.Consumer {
     }
     
     protected SubstringPacker.Consumer buildEncodingModel(DocumentList documents) {
+        return buildEncodingModel(documents, null);
+    }
+    
+    /**
+     * As per buildEncodingModel(DocumentList), but parsing the documents as
+     * priced by costs (see SubstringPacker.pack).
+     */
+    protected SubstringPacker.Consumer buildEncodingModel(DocumentList documents, SubstringPacker.CostModel costs) {
         try {
-            SubstringPacker modelBuildingPacker = new SubstringPacker(dictionary);
+            SubstringPacker modelBuildingPacker = createSubstringPacker();
             SubstringPacker.Consumer modelBuilder = createModelBuilder();
             for (int i = 0, count = documents.size(); i < count; i++) {
-                modelBuildingPacker.pack(documents.get(i), modelBuilder, null);
+                modelBuildingPacker.pack(documents.get(i), modelBuilder, null, costs);
             }
             
             return modelBuilder;
@@ -0,0 +1,124 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A uniform random sample of documents totalling at most maxBytes, taken in a
+ * single pass over the documents, which are only held while in the sample.
+ * Each document is given a random key, and the sample is the documents with
+ * the smallest keys which fit.  Documents larger than maxBytes are never
+ * sampled.  The sampled documents keep their original order.
+ */
+public class ReservoirSamplingDocumentList implements DocumentList {
+
+    private static class Sample implements Comparable<Sample> {
+        double key;
+        int order;
+        byte[] document;
+
+        Sample(double key, int order, byte[] document) {
+            this.key = key;
+            this.order = order;
+            this.document = document;
+        }
+
+        public int compareTo(Sample other) {
+            // Largest key first, so it is the first evicted
+            return Double.compare(other.key, key);
+        }
+    }
+
+    private ArrayList<byte[]> documents;
+    private long numBytes;
+    private int documentsSeen;
+    private long bytesSeen;
+
+    public ReservoirSamplingDocumentList(DocumentList documents, long maxBytes) throws IOException {
+        this(documents, maxBytes, new Random(1234567890));
+    }
+
+    public ReservoirSamplingDocumentList(DocumentList documents, long maxBytes, Random random) throws IOException {
+        PriorityQueue<Sample> reservoir = new PriorityQueue<Sample>();
+        // Documents with a key at or over the smallest evicted key can't be in the sample
+        double threshold = Double.MAX_VALUE;
+
+        for (int i = 0, count = documents.size(); i < count; i++) {
+            byte[] document = documents.get(i);
+            double key = random.nextDouble();
+            documentsSeen++;
+            bytesSeen += document.length;
+            if (key >= threshold || document.length > maxBytes) {
+                continue;
+            }
+
+            reservoir.add(new Sample(key, i, document));
+            numBytes += document.length;
+            while (numBytes > maxBytes) {
+                Sample evicted = reservoir.poll();
+                numBytes -= evicted.document.length;
+                threshold = evicted.key;
+            }
+        }
+
+        ArrayList<Sample> samples = new ArrayList<Sample>(reservoir);
+        Collections.sort(samples, new Comparator<Sample>() {
+            public int compare(Sample s1, Sample s2) {
+                return s1.order - s2.order;
+            }
+        });
+        this.documents = new ArrayList<byte[]>(samples.size());
+        for (Sample sample : samples) {
+            this.documents.add(sample.document);
+        }
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    public byte[] get(int i) throws IOException {
+        return documents.get(i);
+    }
+
+    /**
+     * The total length of the sampled documents.
+     */
+    public long getNumBytes() {
+        return numBytes;
+    }
+
+    public int getDocumentsSeen() {
+        return documentsSeen;
+    }
+
+    public long getBytesSeen() {
+        return bytesSeen;
+    }
+
+    /**
+     * The fraction of the bytes seen which were sampled.
+     */
+    public double getCoverage() {
+        return bytesSeen == 0 ? 1 : (double)numBytes / bytesSeen;
+    }
+}
@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Random;
 
 import org.toubassi.femtozip.dictionary.DictionaryOptimizer;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
 import org.toubassi.femtozip.models.NativeCompressionModel;
 import org.toubassi.femtozip.util.FileUtil;
 
@@ -48,9 +49,15 @@ public class Tool  {
     protected boolean dumpArgs;
     protected boolean useNativeModel;
     protected boolean dictOnly;
+    protected boolean persistHash;
+    protected boolean optimalParsing;
     
     protected int numSamples = Integer.MAX_VALUE;
     protected int maxDictionarySize = 0;
+    protected int level = 9;
+    protected int hashBits = -1;
+    protected int threads = 1;
+    protected long dictionaryMemory = 0;
 
     protected CompressionModel buildModel(DocumentList documents) throws IOException {
         return buildModel(documents, new ArrayList<CompressionModel.ModelOptimizationResult>());
@@ -206,7 +213,14 @@ public class Tool  {
         File dir = new File(path);
         List<String> files = Arrays.asList(dir.list());
         DocumentList documents = new FileDocumentList(path, files);
+        if (dictionaryMemory > 0) {
+            ReservoirSamplingDocumentList sample = new ReservoirSamplingDocumentList(documents, DictionaryOptimizer.getMaxDocumentBytes(dictionaryMemory));
+            System.out.println("Sampled " + sample.size() + " of " + sample.getDocumentsSeen() + " documents, " +
+                    sample.getNumBytes() + " of " + sample.getBytesSeen() + " bytes (" + Math.round(sample.getCoverage() * 100) + "%)");
+            documents = sample;
+        }
         DictionaryOptimizer optimizer = new DictionaryOptimizer(documents);
+        optimizer.setParallelism(threads);
         byte[] dictionary = optimizer.optimize(maxDictionarySize  > 0 ? maxDictionarySize : 64*1024);
         
         FileOutputStream fileOut = new FileOutputStream(modelPath);
@@ -222,6 +236,13 @@ public class Tool  {
         }
         else {
             model = CompressionModel.loadModel(modelPath);
+            model.setCompressionLevel(level);
+            if (hashBits >= 0) {
+                model.setHashBits(hashBits);
+            }
+            if (model instanceof FemtoZipCompressionModel) {
+                ((FemtoZipCompressionModel)model).setOptimalParsing(optimalParsing);
+            }
         }
     }
     
@@ -229,11 +250,15 @@ public class Tool  {
         File modelDir = new File(modelPath);
         modelDir.getParentFile().mkdirs();
         
+        model.setPersistDictionaryHash(persistHash);
+        if (hashBits >= 0) {
+            model.setHashBits(hashBits);
+        }
         model.save(modelPath);
     }
     
     protected void usage() {
-        System.out.println("Usage: [--build|--benchmark|--compress|--decompress] [--dictonly] [--maxdict num] --model path path");
+        System.out.println("Usage: [--build|--benchmark|--compress|--decompress] [--dictonly] [--threads num] [--dictmemory mb] [--maxdict num] [--level 0-9] [--hashbits 0-30] [--persisthash] [--optimal] --model path path");
         System.exit(1);
     }
     
@@ -272,9 +297,27 @@ public class Tool  {
             else if (arg.equals("--verify")) {
                 verify = true;
             }
+            else if (arg.equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--dictmemory")) {
+                dictionaryMemory = Long.parseLong(args[++i]) * 1024 * 1024;
+            }
             else if (arg.equals("--maxdict")) {
                 maxDictionarySize = Integer.parseInt(args[++i]);
             }
+            else if (arg.equals("--persisthash")) {
+                persistHash = true;
+            }
+            else if (arg.equals("--optimal")) {
+                optimalParsing = true;
+            }
+            else if (arg.equals("--hashbits")) {
+                hashBits = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--level")) {
+                level = Integer.parseInt(args[++i]);
+            }
             else if (arg.equals("--native")) {
                 useNativeModel = true;
             }
@@ -17,39 +17,115 @@ package org.toubassi.femtozip.coding.huffman;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
+/**
+ * Writes bits low bit first.  Bits are gathered in a 64 bit accumulator and
+ * written to a byte[] 32 bits at a time.  The byte[] is either one supplied
+ * by the caller (which is replaced by a bigger copy if it fills up), or an
+ * internal buffer which is written to an OutputStream whenever it fills and
+ * when the BitOutput is flushed.
+ */
 public class BitOutput {
     
+    private static final int StreamBufferSize = 8192;
+    
     private OutputStream out;
-    private int buffer;
+    private byte[] bytes;
+    private int start;
+    private int length;
+    private long buffer;
     private int count;
     
     public BitOutput(OutputStream output) {
         out = output;
+        bytes = new byte[StreamBufferSize];
+    }
+    
+    /**
+     * Writes into bytes starting at offset.
+     * 
+     * @see #getBytes()
+     */
+    public BitOutput(byte[] bytes, int offset) {
+        this.bytes = bytes;
+        start = length = offset;
+    }
+    
+    /**
+     * The array written to, which is the one passed to the constructor unless
+     * it had to be grown.  The output starts at the offset passed to the
+     * constructor, and is getLength() bytes long once flushed.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+    
+    public int getLength() {
+        return length - start;
     }
 
     public void writeBit(int bit) throws IOException  {
-        if (bit > 0) {
-            buffer |= (1 << count);
+        writeBits(bit > 0 ? 1 : 0, 1);
+    }
+    
+    /**
+     * Writes the low bitLength bits of value (which must be clear above
+     * those), low bit first.  bitLength can be at most 32.
+     */
+    public void writeBits(int value, int bitLength) throws IOException {
+        buffer |= (value & 0xffffffffL) << count;
+        count += bitLength;
+        if (count >= 32) {
+            if (length + 4 > bytes.length) {
+                makeRoom(4);
+            }
+            byte[] bytes = this.bytes;
+            int length = this.length;
+            long buffer = this.buffer;
+            bytes[length] = (byte)buffer;
+            bytes[length + 1] = (byte)(buffer >> 8);
+            bytes[length + 2] = (byte)(buffer >> 16);
+            bytes[length + 3] = (byte)(buffer >> 24);
+            this.length = length + 4;
+            this.buffer = buffer >>> 32;
+            count -= 32;
+        }
+    }
+    
+    private void makeRoom(int needed) throws IOException {
+        if (out != null) {
+            out.write(bytes, 0, length);
+            length = 0;
         }
-        count++;
-        if (count == 8) {
-            out.write(buffer);
-            buffer = 0;
-            count = 0;
+        if (length + needed > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + needed, 2 * bytes.length));
         }
     }
 
+    /**
+     * Writes any pending bits, padding the last byte with 0s, and if writing
+     * to an OutputStream writes everything buffered so far to it.
+     */
     public void flush() throws IOException {
-        if (count > 0) {
-            out.write(buffer);
-            buffer = 0;
-            count = 0;
+        while (count > 0) {
+            if (length + 1 > bytes.length) {
+                makeRoom(1);
+            }
+            bytes[length++] = (byte)buffer;
+            buffer >>>= 8;
+            count = Math.max(0, count - 8);
+        }
+        if (out != null && length > 0) {
+            out.write(bytes, 0, length);
+            length = 0;
         }
     }
     
     public void close() throws IOException {
         flush();
-        out.close();
+        if (out != null) {
+            out.close();
+        }
     }
 }
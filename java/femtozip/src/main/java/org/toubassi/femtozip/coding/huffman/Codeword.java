@@ -31,6 +31,10 @@ public class Codeword implements Cloneable {
         return symbol;
     }
 
+    public int getBitLength() {
+        return bitLength;
+    }
+
     public void load(DataInputStream in) throws IOException {
         value = in.readInt();
         bitLength = in.readInt();
@@ -75,14 +79,7 @@ public class Codeword implements Cloneable {
     }
     
     public void write(BitOutput bitOut) throws IOException {
-        int l = bitLength;
-        int v = value;
-        
-        while (l > 0) {
-            bitOut.writeBit((v & 0x1));
-            l--;
-            v >>= 1;
-        }
+        bitOut.writeBits(value, bitLength);
     }
 
 }
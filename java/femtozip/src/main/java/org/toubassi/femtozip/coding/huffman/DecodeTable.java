@@ -16,56 +16,85 @@
 package org.toubassi.femtozip.coding.huffman;
 
 
+/**
+ * Maps the low bits of the input to the Codeword they start with.  The top
+ * level table is as wide as the longest code, up to MaxTopLevelBits, so codes
+ * limited to that length (see FrequencyHuffmanModel) decode with a single
+ * lookup.  Longer codes continue into nested 8 bit tables.
+ */
 public class DecodeTable {
     
-    Codeword[] codes = new Codeword[256];
-    DecodeTable[] tables = new DecodeTable[256];
+    public static final int MaxTopLevelBits = 12;
     
-    public void build(Codeword[] encoding) {
-        build(encoding, 0);
+    int bits;
+    int mask;
+    Codeword[] codes;
+    DecodeTable[] tables;
+    
+    public DecodeTable() {
+        this(8);
+    }
+    
+    private DecodeTable(int bits) {
+        this.bits = bits;
+        mask = (1 << bits) - 1;
+        codes = new Codeword[1 << bits];
+        tables = new DecodeTable[1 << bits];
     }
     
-    private void build(Codeword[] encoding, int consumedBitLength) {
+    public void build(Codeword[] encoding) {
+        int maxBitLength = 0;
+        for (int i = 0, count = encoding.length; i < count; i++) {
+            if (encoding[i] != null) {
+                maxBitLength = Math.max(maxBitLength, encoding[i].bitLength);
+            }
+        }
+        int topLevelBits = Math.max(1, Math.min(maxBitLength, MaxTopLevelBits));
+        if (topLevelBits != bits) {
+            bits = topLevelBits;
+            mask = (1 << bits) - 1;
+            codes = new Codeword[1 << bits];
+            tables = new DecodeTable[1 << bits];
+        }
         
         for (int i = 0, count = encoding.length; i < count; i++) {
             Codeword code = encoding[i];
             if (code == null) {
                 continue;
             }
-            buildCodeword(consumedBitLength, code);
+            buildCodeword(0, code);
         }
-        
     }
 
     private void buildCodeword(int consumedBitLength, Codeword code) {
         int activeBitLength = code.bitLength - consumedBitLength;
         
-        if (activeBitLength <= 8) {
+        if (activeBitLength <= bits) {
             
-            for (int j = 0, jcount = 1 << (8 - activeBitLength); j < jcount; j++) {
-                int index = (j << activeBitLength) | (code.value >> consumedBitLength);
+            for (int j = 0, jcount = 1 << (bits - activeBitLength); j < jcount; j++) {
+                int index = (j << activeBitLength) | (code.value >>> consumedBitLength);
                 codes[index] = code;
             }
         }
         else {
-            int index = (code.value >> consumedBitLength) & 0xff;
+            int index = (code.value >>> consumedBitLength) & mask;
             DecodeTable subtable = tables[index];
             if (subtable == null) {
-                subtable = new DecodeTable();
+                subtable = new DecodeTable(8);
                 tables[index] = subtable;
             }
-            subtable.buildCodeword(consumedBitLength + 8, code);
+            subtable.buildCodeword(consumedBitLength + bits, code);
         }
     }
     
     public Codeword decode(int value) {
-        int index = value & 0xff;
+        int index = value & mask;
         Codeword code = codes[index];
         if (code != null) {
             return code;
         }
         else {
-            return tables[index].decode(value>>8);
+            return tables[index].decode(value >>> bits);
         }
     }
 
@@ -19,6 +19,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -26,6 +27,7 @@ public class FrequencyHuffmanModel implements HuffmanModel {
     
     private Codeword[] encoding;
     private DecodeTable decoding;
+    private boolean canonical;
     
     public static int[] computeHistogramWithEOFSymbol(byte[] data) {
         int[] histogram = new int[256 + 1];
@@ -37,6 +39,15 @@ public class FrequencyHuffmanModel implements HuffmanModel {
     }
     
     public FrequencyHuffmanModel(int[] histogram, boolean allSymbolsSampled) {
+        this(histogram, allSymbolsSampled, 0);
+    }
+    
+    /**
+     * Builds codes no longer than maxBitLength (0 for no limit), which must be
+     * enough bits to give every symbol a code.  Codes no longer than
+     * DecodeTable.MaxTopLevelBits decode with a single table lookup.
+     */
+    public FrequencyHuffmanModel(int[] histogram, boolean allSymbolsSampled, int maxBitLength) {
         
         if (!allSymbolsSampled) {
             for (int i = 0, count = histogram.length; i < count; i++) {
@@ -46,15 +57,32 @@ public class FrequencyHuffmanModel implements HuffmanModel {
             }
         }
         
-        computeHuffmanCoding(histogram);
+        if (maxBitLength > 0) {
+            computeLengthLimitedCoding(histogram, maxBitLength);
+        }
+        else {
+            computeHuffmanCoding(histogram);
+        }
     }
     
     public FrequencyHuffmanModel(DataInputStream in) throws IOException {
         load(in);
     }
 
+    /**
+     * Loads a model written by save, which is either the code lengths of a
+     * canonical code (marked by a negative symbol count), or every codeword.
+     */
     public void load(DataInputStream in) throws IOException {
-        encoding = new Codeword[in.readInt()];
+        int numSymbols = in.readInt();
+        if (numSymbols < 0) {
+            byte[] bitLengths = new byte[-numSymbols];
+            in.readFully(bitLengths);
+            loadBitLengths(bitLengths);
+            return;
+        }
+        
+        encoding = new Codeword[numSymbols];
         for (int i = 0, count = encoding.length; i < count; i++) {
             if (in.readBoolean()) {
                 encoding[i] = new Codeword();
@@ -63,9 +91,59 @@ public class FrequencyHuffmanModel implements HuffmanModel {
         }
         decoding = new DecodeTable();
         decoding.build(encoding);
+        canonical = isCanonical(encoding);
+    }
+    
+    private void loadBitLengths(byte[] bitLengths) throws IOException {
+        int[] lengths = new int[bitLengths.length];
+        long kraft = 0;
+        for (int i = 0, count = bitLengths.length; i < count; i++) {
+            int length = bitLengths[i];
+            if (length < 0 || length > 31) {
+                throw new IOException("Bad model in stream.  Code length " + length + " out of range");
+            }
+            if (length != 0) {
+                kraft += 1L << (31 - length);
+            }
+            lengths[i] = length;
+        }
+        if (kraft > 1L << 31) {
+            throw new IOException("Bad model in stream.  Code lengths are not a prefix code");
+        }
+        
+        encoding = computeCanonicalCoding(lengths);
+        decoding = new DecodeTable();
+        decoding.build(encoding);
+        canonical = true;
     }
 
+    /**
+     * Saves just the code lengths if the codes are canonical (as all codes
+     * built by this version are), otherwise every codeword.
+     */
     public void save(DataOutputStream out) throws IOException {
+        save(out, canonical);
+    }
+    
+    /**
+     * Saves every codeword unless compact, which requires the codes to be
+     * canonical.  Only compact models need a reader from this version, so
+     * models saved without a format version of their own shouldn't be.
+     */
+    public void save(DataOutputStream out, boolean compact) throws IOException {
+        if (compact && !canonical) {
+            throw new IllegalArgumentException("Only canonical codes can be saved compactly");
+        }
+        if (compact) {
+            out.writeInt(-encoding.length);
+            byte[] bitLengths = new byte[encoding.length];
+            for (int i = 0, count = encoding.length; i < count; i++) {
+                bitLengths[i] = encoding[i] == null ? 0 : (byte)encoding[i].bitLength;
+            }
+            out.write(bitLengths);
+            return;
+        }
+        
         out.writeInt(encoding.length);
         for (int i = 0, count = encoding.length; i < count; i++) {
             if (encoding[i] != null) {
@@ -78,6 +156,22 @@ public class FrequencyHuffmanModel implements HuffmanModel {
         }
     }
     
+    /**
+     * True if the codes are canonical, so save stores just their lengths.
+     * Models loaded from older versions may not be.
+     */
+    public boolean isCanonical() {
+        return canonical;
+    }
+    
+    private static boolean isCanonical(Codeword[] encoding) {
+        int[] bitLengths = new int[encoding.length];
+        for (int i = 0, count = encoding.length; i < count; i++) {
+            bitLengths[i] = encoding[i] == null ? 0 : encoding[i].bitLength;
+        }
+        return Arrays.equals(encoding, computeCanonicalCoding(bitLengths));
+    }
+    
     protected void computeHuffmanCoding(int[] histogram) {
         List<HuffmanNode> queue1 = new ArrayList<HuffmanNode>();
         List<HuffmanNode> queue2 = new ArrayList<HuffmanNode>();
@@ -121,10 +215,119 @@ public class FrequencyHuffmanModel implements HuffmanModel {
             queue2.add(newNode);
         }
         
-        encoding = new Codeword[histogram.length];
-        queue2.get(0).collectPrefixes(encoding, new Codeword());
+        // The tree gives us the code lengths, but we use the canonical codes for them.
+        Codeword[] prefixes = new Codeword[histogram.length];
+        queue2.get(0).collectPrefixes(prefixes, new Codeword());
+        int[] bitLengths = new int[histogram.length];
+        for (int i = 0, count = prefixes.length; i < count; i++) {
+            bitLengths[i] = prefixes[i] == null ? 0 : prefixes[i].bitLength;
+        }
+        encoding = computeCanonicalCoding(bitLengths);
+        decoding = new DecodeTable();
+        decoding.build(encoding);
+        canonical = true;
+    }
+    
+    /**
+     * Computes the optimal code lengths no longer than maxBitLength with
+     * package-merge, and assigns canonical codes for them.
+     */
+    protected void computeLengthLimitedCoding(int[] histogram, int maxBitLength) {
+        List<HuffmanNode> leaves = new ArrayList<HuffmanNode>();
+        for (int i = 0, count = histogram.length; i < count; i++) {
+            if (histogram[i] != 0) {
+                leaves.add(new HuffmanNode(null, null, histogram[i], i));
+            }
+        }
+        if (maxBitLength > 31 || leaves.size() > (1L << maxBitLength)) {
+            throw new IllegalArgumentException(leaves.size() + " symbols can't be coded in " + maxBitLength + " bits");
+        }
+        
+        HuffmanNodeWeightComparator comparator = new HuffmanNodeWeightComparator();
+        Collections.sort(leaves, comparator);
+        
+        int[] bitLengths = new int[histogram.length];
+        if (leaves.size() == 1) {
+            bitLengths[leaves.get(0).symbol] = 1;
+        }
+        else {
+            // Each pass pairs up the cheapest items into packages one bit deeper,
+            // and merges them with the leaves.  The stable sort keeps leaves ahead
+            // of packages of the same weight.
+            List<HuffmanNode> items = leaves;
+            for (int i = 1; i < maxBitLength; i++) {
+                List<HuffmanNode> merged = new ArrayList<HuffmanNode>(leaves);
+                for (int j = 0, count = items.size() - 1; j < count; j += 2) {
+                    HuffmanNode left = items.get(j);
+                    HuffmanNode right = items.get(j + 1);
+                    merged.add(new HuffmanNode(left, right, left.weight + right.weight, null));
+                }
+                Collections.sort(merged, comparator);
+                items = merged;
+            }
+            
+            // A symbol's code length is the number of the cheapest 2n-2 items it is in.
+            for (int i = 0, count = 2 * leaves.size() - 2; i < count; i++) {
+                countLeaves(items.get(i), bitLengths);
+            }
+        }
+        
+        encoding = computeCanonicalCoding(bitLengths);
         decoding = new DecodeTable();
         decoding.build(encoding);
+        canonical = true;
+    }
+    
+    private static void countLeaves(HuffmanNode node, int[] bitLengths) {
+        if (node.symbol != null) {
+            bitLengths[node.symbol]++;
+        }
+        else {
+            countLeaves(node.left, bitLengths);
+            countLeaves(node.right, bitLengths);
+        }
+    }
+    
+    /**
+     * Assigns codes for the given lengths in order of length then symbol.  Bits
+     * are written least significant first, so the codes are stored reversed.
+     */
+    static Codeword[] computeCanonicalCoding(int[] bitLengths) {
+        int maxBitLength = 0;
+        for (int i = 0, count = bitLengths.length; i < count; i++) {
+            maxBitLength = Math.max(maxBitLength, bitLengths[i]);
+        }
+        int[] lengthCounts = new int[maxBitLength + 1];
+        for (int i = 0, count = bitLengths.length; i < count; i++) {
+            lengthCounts[bitLengths[i]]++;
+        }
+        lengthCounts[0] = 0;
+        int[] nextCode = new int[maxBitLength + 1];
+        for (int length = 1, code = 0; length <= maxBitLength; length++) {
+            code = (code + lengthCounts[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+        
+        Codeword[] encoding = new Codeword[bitLengths.length];
+        for (int i = 0, count = bitLengths.length; i < count; i++) {
+            int length = bitLengths[i];
+            if (length != 0) {
+                Codeword codeword = new Codeword();
+                codeword.value = Integer.reverse(nextCode[length]++) >>> (32 - length);
+                codeword.bitLength = length;
+                codeword.symbol = i;
+                encoding[i] = codeword;
+            }
+        }
+        return encoding;
+    }
+    
+    /**
+     * Returns a copy of the code packed into primitive tables, for callers
+     * which encode or decode a lot of symbols.
+     */
+    public PackedHuffmanCode pack() {
+        return new PackedHuffmanCode(encoding, decoding);
     }
     
     public Codeword getCodewordForEOF() {
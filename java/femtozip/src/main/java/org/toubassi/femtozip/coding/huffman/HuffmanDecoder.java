@@ -15,35 +15,113 @@
  */
 package org.toubassi.femtozip.coding.huffman;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+/**
+ * Decodes symbols from a byte[], ByteBuffer or InputStream, refilling a 64 bit
+ * buffer of pending bits a word at a time (and a byte at a time near the end).
+ */
 public class HuffmanDecoder {
-    private BitInput in;
+    private static final int StreamBufferSize = 8192;
+    
+    private ByteBuffer bytes;
+    private int position;
+    private int limit;
+    private InputStream in;
+    private byte[] streamBuffer;
     private HuffmanModel model;
     private long bitBuf;
     private int availableBits;
     private boolean endOfStream;
     
+    /**
+     * Decodes from the stream, which is read a buffer at a time as needed, so
+     * it may be read past the end of the compressed data.  model may be null
+     * to decode with decodeSymbol(PackedHuffmanCode).
+     */
+    public HuffmanDecoder(HuffmanModel model, InputStream in) {
+        this.model = model;
+        this.in = in;
+        streamBuffer = new byte[StreamBufferSize];
+        bytes = ByteBuffer.wrap(streamBuffer).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Creates a decoder without a model, which decodes with
+     * decodeSymbol(PackedHuffmanCode).
+     */
+    public HuffmanDecoder(byte[] bytes, int offset, int length) {
+        this(null, bytes, offset, length);
+    }
+    
+    public HuffmanDecoder(HuffmanModel model, byte[] bytes) {
+        this(model, bytes, 0, bytes.length);
+    }
+    
+    public HuffmanDecoder(HuffmanModel model, byte[] bytes, int offset, int length) {
+        this(model, ByteBuffer.wrap(bytes, offset, length));
+    }
     
-    public HuffmanDecoder(HuffmanModel model, InputStream in) throws IOException {
-        this.in = new BitInput(in);
+    /**
+     * Decodes the bytes between the buffer's position and limit.  The buffer's
+     * position is not changed.
+     */
+    public HuffmanDecoder(HuffmanModel model, ByteBuffer bytes) {
+        this.bytes = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.position = bytes.position();
+        this.limit = bytes.limit();
         this.model = model;
     }
     
+    private void refill() throws IOException {
+        if (position + 8 > limit && in != null) {
+            readStream();
+        }
+        if (position + 8 <= limit) {
+            // Or in a whole word, and advance past the whole bytes which fit.  The
+            // partial byte at the top is or'd in again (identically) next time.
+            bitBuf |= bytes.getLong(position) << availableBits;
+            int consumed = (63 - availableBits) >>> 3;
+            position += consumed;
+            availableBits += consumed << 3;
+        }
+        else {
+            while (availableBits <= 56 && position < limit) {
+                bitBuf |= (bytes.get(position++) & 0xffL) << availableBits;
+                availableBits += 8;
+            }
+        }
+    }
+    
+    /**
+     * Moves the unconsumed bytes to the front of the stream buffer and reads
+     * what the stream has, at least a word unless it ends.
+     */
+    private void readStream() throws IOException {
+        int remaining = limit - position;
+        System.arraycopy(streamBuffer, position, streamBuffer, 0, remaining);
+        position = 0;
+        limit = remaining;
+        while (limit < 8) {
+            int count = in.read(streamBuffer, limit, streamBuffer.length - limit);
+            if (count < 0) {
+                in = null;
+                break;
+            }
+            limit += count;
+        }
+    }
+    
     public int decodeSymbol() throws IOException {
         if (endOfStream) {
             return -1;
         }
-        while (availableBits < 32) {
-            int newBit = in.readBit();
-            if (newBit == -1) {
-                break;
-            }
-            if (newBit == 1) {
-                bitBuf |= 1L << availableBits;
-            }
-            availableBits++;
+        if (availableBits < 32) {
+            refill();
         }
         
         Codeword decoded = model.decode((int)bitBuf);
@@ -51,8 +129,31 @@ public class HuffmanDecoder {
             endOfStream = true;
             return -1;
         }
-        bitBuf >>= decoded.bitLength;
         availableBits -= decoded.bitLength;
+        if (availableBits < 0) {
+            throw new EOFException("Compressed data ended before its end of stream symbol");
+        }
+        bitBuf >>>= decoded.bitLength;
         return decoded.symbol;
     }
+    
+    /**
+     * Decodes the next symbol with the given code, for callers which switch
+     * between several codes.  Unlike decodeSymbol() this has no notion of
+     * EOF, so the caller must recognize the EOF symbol.
+     */
+    public int decodeSymbol(PackedHuffmanCode code) throws IOException {
+        if (availableBits < 32) {
+            refill();
+        }
+        
+        int entry = code.decode((int)bitBuf);
+        int bitLength = PackedHuffmanCode.getBitLength(entry);
+        availableBits -= bitLength;
+        if (availableBits < 0) {
+            throw new EOFException("Compressed data ended before its end of stream symbol");
+        }
+        bitBuf >>>= bitLength;
+        return PackedHuffmanCode.getSymbol(entry);
+    }
 }
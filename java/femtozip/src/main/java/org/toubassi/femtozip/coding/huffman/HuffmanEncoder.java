@@ -23,12 +23,21 @@ public class HuffmanEncoder {
     private HuffmanModel model;
     
     public HuffmanEncoder(HuffmanModel model, OutputStream out) {
-        bitOut = new BitOutput(out);
+        this(model, new BitOutput(out));
+    }
+    
+    public HuffmanEncoder(HuffmanModel model, BitOutput bitOut) {
+        this.bitOut = bitOut;
         this.model = model;
     }
     
+    public BitOutput getBitOutput() {
+        return bitOut;
+    }
+    
     public void encodeSymbol(int symbol) throws IOException {
-        model.encode(symbol).write(bitOut);
+        Codeword codeword = model.encode(symbol);
+        bitOut.writeBits(codeword.value, codeword.bitLength);
     }
     
     public void close() throws IOException {
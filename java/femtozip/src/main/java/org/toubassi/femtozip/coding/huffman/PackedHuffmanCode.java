@@ -0,0 +1,127 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.coding.huffman;
+
+import java.io.IOException;
+
+/**
+ * An immutable copy of a code packed into primitive arrays, so encoding or
+ * decoding a symbol is an array lookup rather than a HuffmanModel call
+ * returning a Codeword.  Decoding returns an entry packing the symbol and
+ * its bit length, see getSymbol and getBitLength.  Build one with
+ * FrequencyHuffmanModel.pack.
+ */
+public final class PackedHuffmanCode {
+    
+    // Codeword value | bitLength << 32, or 0 for a symbol without a codeword
+    private final long[] encoding;
+    
+    // The top level table of the DecodeTable followed by its nested tables.  An
+    // entry is symbol << 8 | bitLength, or the offset of a nested table << 8 for
+    // a longer code (so a bitLength of 0).
+    private final int[] decoding;
+    private final int topLevelBits;
+    private final int topLevelMask;
+    
+    PackedHuffmanCode(Codeword[] codewords, DecodeTable table) {
+        encoding = new long[codewords.length];
+        for (int i = 0, count = codewords.length; i < count; i++) {
+            Codeword codeword = codewords[i];
+            if (codeword != null) {
+                encoding[i] = (codeword.value & 0xffffffffL) | ((long)codeword.bitLength << 32);
+            }
+        }
+        
+        decoding = new int[countEntries(table)];
+        pack(table, 0);
+        topLevelBits = table.bits;
+        topLevelMask = table.mask;
+    }
+    
+    private static int countEntries(DecodeTable table) {
+        int count = table.codes.length;
+        for (DecodeTable subtable : table.tables) {
+            if (subtable != null) {
+                count += countEntries(subtable);
+            }
+        }
+        return count;
+    }
+    
+    private int pack(DecodeTable table, int offset) {
+        int next = offset + table.codes.length;
+        for (int i = 0, count = table.codes.length; i < count; i++) {
+            Codeword codeword = table.codes[i];
+            if (codeword != null) {
+                decoding[offset + i] = (codeword.symbol << 8) | codeword.bitLength;
+            }
+            else if (table.tables[i] != null) {
+                decoding[offset + i] = next << 8;
+                next = pack(table.tables[i], next);
+            }
+        }
+        return next;
+    }
+    
+    public int getNumSymbols() {
+        return encoding.length;
+    }
+    
+    /**
+     * The length of symbol's codeword, or 0 if it has none.
+     */
+    public int getCodeLength(int symbol) {
+        return (int)(encoding[symbol] >>> 32);
+    }
+    
+    public void encode(int symbol, BitOutput bitOut) throws IOException {
+        long packed = encoding[symbol];
+        if (packed == 0) {
+            throw new IllegalArgumentException("No codeword for symbol " + symbol);
+        }
+        bitOut.writeBits((int)packed, (int)(packed >>> 32));
+    }
+    
+    /**
+     * Returns the entry for the codeword at the start (low bits) of bits.
+     */
+    public int decode(int bits) {
+        int entry = decoding[bits & topLevelMask];
+        if ((entry & 0xff) != 0) {
+            return entry;
+        }
+        return decodeLongCode(bits >>> topLevelBits, entry);
+    }
+    
+    private int decodeLongCode(int bits, int entry) {
+        while ((entry & 0xff) == 0) {
+            if (entry == 0) {
+                throw new IllegalArgumentException("No codeword matches " + Integer.toBinaryString(bits));
+            }
+            entry = decoding[(entry >>> 8) + (bits & 0xff)];
+            bits >>>= 8;
+        }
+        return entry;
+    }
+    
+    public static int getSymbol(int entry) {
+        return entry >>> 8;
+    }
+    
+    public static int getBitLength(int entry) {
+        return entry & 0xff;
+    }
+}
@@ -19,19 +19,33 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.toubassi.femtozip.DocumentList;
 
 
 public class DictionaryOptimizer {
 
+    /**
+     * Roughly the most memory optimize uses per byte of documents, as measured
+     * on text.  See getMaxDocumentBytes.
+     */
+    public static final int BytesPerDocumentByte = 36;
+    
+    // Everything is concatenated into one array
+    private static final long MaxDocumentBytes = Integer.MAX_VALUE - 8;
+    
+    // Shorter strings are never worth putting in the dictionary
+    private static final int MinSubstringLength = 4;
+    
     private SubstringArray substrings;
     private byte[] bytes;
     private int[] suffixArray;
     private int[] lcp;
     private int[] starts;
+    private int[] suffixDocs;
+    private int parallelism = 1;
+    private ForkJoinPool pool;
     
     public DictionaryOptimizer(DocumentList documents) throws IOException {
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
@@ -39,6 +53,9 @@ public class DictionaryOptimizer {
         
         for (int i = 0, count = documents.size(); i < count; i++) {
             byte[] document = documents.get(i);
+            if (bytesOut.size() + (long)document.length > MaxDocumentBytes) {
+                throw new IllegalArgumentException("Documents total more than " + MaxDocumentBytes + " bytes, see ReservoirSamplingDocumentList");
+            }
             starts[i] = bytesOut.size();
             bytesOut.write(document);
         }
@@ -46,23 +63,162 @@ public class DictionaryOptimizer {
         bytes = bytesOut.toByteArray();
     }
     
+    /**
+     * The most bytes of documents to optimize within roughly memoryBudget
+     * bytes of memory.  Larger sets of documents can be sampled down with
+     * ReservoirSamplingDocumentList.
+     */
+    public static long getMaxDocumentBytes(long memoryBudget) {
+        return Math.min(memoryBudget / BytesPerDocumentByte, MaxDocumentBytes);
+    }
+    
+    /**
+     * Sets how many threads optimize runs each phase of building the
+     * dictionary on (1, the default, runs everything on the calling thread).
+     * The dictionary is the same whatever the parallelism.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism " + parallelism + " must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+    
     public byte[] optimize(int desiredLength) {
-        suffixArray = SuffixArray.computeSuffixArray(bytes);
-        lcp = SuffixArray.computeLCP(bytes, suffixArray);
-        computeSubstrings();
-        return pack(desiredLength);
+        return optimize(desiredLength, parallelism > 1 ? SuffixArray.Algorithm.ParallelPrefixDoubling : SuffixArray.Algorithm.SAIS);
+    }
+    
+    /**
+     * Optimizes using the given suffix array algorithm.  They all produce the
+     * same dictionary, but SAIS is linear time, where PrefixDoubling slows down
+     * badly on repetitive documents.
+     */
+    public byte[] optimize(int desiredLength, SuffixArray.Algorithm algorithm) {
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try {
+            if (pool != null) {
+                suffixArray = algorithm == SuffixArray.Algorithm.ParallelPrefixDoubling ?
+                        SuffixArray.computeSuffixArrayParallel(bytes, pool) : SuffixArray.computeSuffixArray(bytes, algorithm);
+                lcp = SuffixArray.computeLCP(bytes, suffixArray, pool);
+            }
+            else {
+                suffixArray = SuffixArray.computeSuffixArray(bytes, algorithm);
+                lcp = SuffixArray.computeLCP(bytes, suffixArray);
+            }
+            computeSubstrings();
+            return pack(desiredLength);
+        }
+        finally {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+        }
     }
 
-    // TODO Bring this up to parity with C++ version, which has optimized
     protected void computeSubstrings() {
-        SubstringArray activeSubstrings = new SubstringArray(128);
-        Set<Integer> uniqueDocIds = new HashSet<Integer>();
+        computeSuffixDocs();
+        if (pool == null) {
+            substrings = new SubstringArray(1024);
+            computeSubstrings(0, lcp.length, substrings);
+        }
+        else {
+            computeSubstringsParallel();
+        }
+        suffixDocs = null;
+        substrings.sort();
+    }
+    
+    /**
+     * Maps each position in the suffix array to the document its suffix
+     * starts in, or -1 for the empty suffix.
+     */
+    private void computeSuffixDocs() {
+        final int[] docs = new int[bytes.length + 1];
+        for (int i = 0; i < starts.length; i++) {
+            // Empty documents share a start with the next, which overwrites them
+            Arrays.fill(docs, starts[i], i < starts.length - 1 ? starts[i + 1] : bytes.length, i);
+        }
+        docs[bytes.length] = -1;
+        
+        suffixDocs = new int[docs.length];
+        if (pool == null) {
+            for (int i = 0; i < docs.length; i++) {
+                suffixDocs[i] = docs[suffixArray[i]];
+            }
+        }
+        else {
+            pool.invoke(new ParallelChunks(docs.length, 4 * parallelism) {
+                protected void run(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        suffixDocs[i] = docs[suffixArray[i]];
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Splits the LCP array where it drops below MinSubstringLength.  Every
+     * substring worth scoring ends there, so the pieces are scored in
+     * parallel, and concatenated in order give the same substrings as
+     * scoring the whole.
+     */
+    private void computeSubstringsParallel() {
+        int n = lcp.length;
+        int targetPieces = 16 * parallelism;
+        int[] bounds = new int[targetPieces + 1];
+        int numPieces = 0;
+        for (int p = 1, b = 0; p < targetPieces; p++) {
+            b = Math.max(b + 1, (int)((long)n * p / targetPieces));
+            while (b < n && lcp[b] >= MinSubstringLength) {
+                b++;
+            }
+            if (b >= n) {
+                break;
+            }
+            bounds[++numPieces] = b;
+        }
+        bounds[++numPieces] = n;
+        
+        final int[] pieceBounds = bounds;
+        final SubstringArray[] pieces = new SubstringArray[numPieces];
+        pool.invoke(new ParallelChunks(numPieces, numPieces) {
+            protected void run(int from, int to) {
+                for (int p = from; p < to; p++) {
+                    pieces[p] = new SubstringArray(1024);
+                    computeSubstrings(pieceBounds[p], pieceBounds[p + 1], pieces[p]);
+                }
+            }
+        });
         
         substrings = new SubstringArray(1024);
+        for (SubstringArray piece : pieces) {
+            for (int i = 0, count = piece.size(); i < count; i++) {
+                substrings.setScore(substrings.size(), piece.index(i), piece.length(i), piece.score(i));
+            }
+        }
+    }
+
+    /**
+     * Adds the substrings for the runs of the suffix array which end at the
+     * positions in (from, to], starting from lcp[from].  At to == lcp.length
+     * every run still open ends.
+     */
+    private void computeSubstrings(int from, int to, SubstringArray substrings) {
+        SubstringArray activeSubstrings = new SubstringArray(128);
+        // The last run each document was counted in, so each is only counted once per run
+        int[] docLastCounted = new int[starts.length];
+        int run = 0;
+        
         int n = lcp.length;
         
-        int lastLCP = lcp[0];
-        for (int i = 1; i <= n; i++) {
+        int lastLCP = lcp[from];
+        for (int i = from + 1; i <= to; i++) {
             // Note we need to process currently existing runs, so we do that by acting like we hit an LCP of 0 at the end.
             // That is why the we loop i <= n vs i < n.  Otherwise runs that exist at the end of the suffixarray/lcp will
             // never be "cashed in" and counted in the substrings.  DictionaryOptimizerTest has a unit test for this.
@@ -88,19 +244,16 @@ public class DictionaryOptimizer {
                         // a previous occurring instance in the document.  So for 2 documents: "garrick garrick garrick toubassi",
                         // "toubassi", the string toubassi is far more valuable in a shared dictionary.  So find out
                         // how many unique documents this string occurs in.  We do this by taking the start position of
-                        // each occurrence, and then map that back to the document using the "starts" array, and uniquing.
-                        // 
-                        // TODO Bring this up to parity with C++ version, which has optimized
-                        //
-                        
+                        // each occurrence, and then map that back to the document using suffixDocs, and uniquing.
+                        if (++run == 0) {
+                            Arrays.fill(docLastCounted, 0);
+                            run = 1;
+                        }
+                        int scoreCount = 0;
                         for (int k = activeSubstrings.index(j) - 1; k < i; k++) {
-                            int byteIndex = suffixArray[k];
-                            
-                            // Could make this a lookup table if we are willing to burn an int[bytes.length] but thats a lot
-                            int docIndex = Arrays.binarySearch(starts, byteIndex);
-                            
-                            if (docIndex < 0) {
-                                docIndex = -docIndex - 2;
+                            int docIndex = suffixDocs[k];
+                            if (docIndex < 0 || docLastCounted[docIndex] == run) {
+                                continue;
                             }
                             
                             // While we are at it lets make sure this is a string that actually exists in a single
@@ -109,21 +262,11 @@ public class DictionaryOptimizer {
                             // ".comhttp://" to be a legal string.  So make sure the length of this string doesn't
                             // cross a document boundary for this particular occurrence.
                             int nextDocStart = docIndex < starts.length - 1 ? starts[docIndex + 1] : bytes.length;
-                            if (activeLength <= nextDocStart - byteIndex) {
-                                uniqueDocIds.add(docIndex);
+                            if (activeLength <= nextDocStart - suffixArray[k]) {
+                                docLastCounted[docIndex] = run;
+                                scoreCount++;
                             }
                         }
-                        
-                        int scoreCount = uniqueDocIds.size();
-                        
-                        // You might think that its better to just clear uniqueDocIds,
-                        // but actually this set can get very large, and calling clear
-                        // loops over all entries in the internal array and sets them to
-                        // null, doesn't even use Arrays.fill, and unfortunately doesn't
-                        // short circuit out if size is already 0 (which is a common case
-                        // in this code).  Doing: if (uniqueDocIds.size() > 0) uniqueDocIds.clear();
-                        // is still not as fast as just tossing the set overboard.
-                        uniqueDocIds = new HashSet<Integer>();
 
                         activeSubstrings.remove(j);
                         
@@ -135,7 +278,7 @@ public class DictionaryOptimizer {
                         // from growing very large.
                         if (!(lastActiveIndex != -1 && lastActiveIndex == activeIndex && lastActiveCount == activeCount && lastActiveLength > activeLength)) {
 
-                            if (activeLength > 3) {
+                            if (activeLength >= MinSubstringLength) {
                                 substrings.add(activeIndex, activeLength, scoreCount);
                             }
                         }
@@ -147,40 +290,110 @@ public class DictionaryOptimizer {
             }
             lastLCP = currentLCP;
         }
-        substrings.sort();
     }
     
-    protected byte[] pack(int desiredLength) {
-        SubstringArray pruned = new SubstringArray(1024);
+    /**
+     * Picks the best scoring substrings, skipping those contained in one
+     * already picked, and dropping those picked which contain the new one.
+     */
+    private SubstringArray prune(int desiredLength) {
+        SubstringIndex pruned = new SubstringIndex(bytes, suffixArray, null);
         int size = 0;
         
         for (int i = substrings.size() - 1; i >= 0; i--) {
-            boolean alreadyCovered = false;
-            for (int j = 0, c = pruned.size(); j < c; j++) {
-                if (pruned.indexOf(j, substrings, i, bytes, suffixArray) != -1) {
-                    
-                    alreadyCovered = true;
-                    break;
-                }
-            }
-            
-            if (alreadyCovered) {
+            int index = substrings.index(i);
+            int length = substrings.length(i);
+            if (pruned.covers(index, length)) {
                 continue;
             }
             
-            for (int j = pruned.size() - 1; j >= 0; j--) {
-                if (substrings.indexOf(i, pruned, j, bytes, suffixArray) != -1) {
-                    size -= pruned.length(j);
-                    pruned.remove(j);
-                }
+            for (int slot : pruned.containedIn(index, length)) {
+                size -= pruned.length(slot);
+                pruned.remove(slot);
             }
-            pruned.setScore(pruned.size(), substrings.index(i), substrings.length(i), substrings.score(i));
-            size += substrings.length(i);
+            pruned.add(index, length, substrings.score(i));
+            size += length;
             // We calculate 2x because when we lay the strings out end to end we will merge common prefix/suffixes
             if (size >= 2*desiredLength) {
                 break;
             }
         }
+        return pruned.toSubstringArray();
+    }
+    
+    /**
+     * Picks the same substrings as prune.  Candidates are taken in batches,
+     * and each is looked up among the substrings picked before its batch in
+     * parallel.  The batch is then replayed in order, which only needs to
+     * compare candidates within the batch.  Containment is transitive, so a
+     * candidate contained in a string which has since been dropped is
+     * contained in the string which dropped it.
+     */
+    private SubstringArray pruneParallel(int desiredLength) {
+        final SubstringIndex pruned = new SubstringIndex(bytes, suffixArray, pool);
+        int size = 0;
+        int batchSize = 16 * parallelism;
+        final boolean[] covered = new boolean[batchSize];
+        final int[][] contained = new int[batchSize][];
+        
+        for (int batchEnd = substrings.size() - 1; batchEnd >= 0 && size < 2*desiredLength; batchEnd -= batchSize) {
+            final int end = batchEnd;
+            final int count = Math.min(batchSize, batchEnd + 1);
+            pool.invoke(new ParallelChunks(count, count) {
+                protected void run(int from, int to) {
+                    for (int k = from; k < to; k++) {
+                        int i = end - k;
+                        covered[k] = pruned.covers(substrings.index(i), substrings.length(i));
+                        contained[k] = covered[k] ? null : pruned.containedIn(substrings.index(i), substrings.length(i));
+                    }
+                }
+            });
+            
+            SubstringArray added = new SubstringArray(count);
+            for (int k = 0; k < count; k++) {
+                if (covered[k]) {
+                    continue;
+                }
+                int i = end - k;
+                boolean alreadyCovered = false;
+                for (int j = 0, c = added.size(); j < c; j++) {
+                    if (added.indexOf(j, substrings, i, bytes, suffixArray) != -1) {
+                        alreadyCovered = true;
+                        break;
+                    }
+                }
+                if (alreadyCovered) {
+                    continue;
+                }
+                
+                for (int slot : contained[k]) {
+                    if (!pruned.isRemoved(slot)) {
+                        size -= pruned.length(slot);
+                        pruned.remove(slot);
+                    }
+                }
+                for (int j = added.size() - 1; j >= 0; j--) {
+                    if (substrings.indexOf(i, added, j, bytes, suffixArray) != -1) {
+                        size -= added.length(j);
+                        added.remove(j);
+                    }
+                }
+                added.setScore(added.size(), substrings.index(i), substrings.length(i), substrings.score(i));
+                size += substrings.length(i);
+                if (size >= 2*desiredLength) {
+                    break;
+                }
+            }
+            
+            for (int j = 0, c = added.size(); j < c; j++) {
+                pruned.add(added.index(j), added.length(j), added.score(j));
+            }
+        }
+        return pruned.toSubstringArray();
+    }
+    
+    protected byte[] pack(int desiredLength) {
+        SubstringArray pruned = pool == null ? prune(desiredLength) : pruneParallel(desiredLength);
 
         byte[] packed = new byte[desiredLength];
         int pi = desiredLength;
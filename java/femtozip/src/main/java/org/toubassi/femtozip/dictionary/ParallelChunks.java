@@ -0,0 +1,53 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.dictionary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs run(from, to) over [0, length) split into numChunks contiguous chunks,
+ * which run in parallel when the action is invoked on a ForkJoinPool.
+ */
+abstract class ParallelChunks extends RecursiveAction {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private int length;
+    private int numChunks;
+    
+    ParallelChunks(int length, int numChunks) {
+        this.length = length;
+        this.numChunks = Math.max(1, Math.min(numChunks, length));
+    }
+    
+    protected abstract void run(int from, int to);
+    
+    protected void compute() {
+        List<RecursiveAction> chunks = new ArrayList<RecursiveAction>(numChunks);
+        for (int i = 0; i < numChunks; i++) {
+            final int from = (int)((long)length * i / numChunks);
+            final int to = (int)((long)length * (i + 1) / numChunks);
+            chunks.add(new RecursiveAction() {
+                protected void compute() {
+                    run(from, to);
+                }
+            });
+        }
+        invokeAll(chunks);
+    }
+}
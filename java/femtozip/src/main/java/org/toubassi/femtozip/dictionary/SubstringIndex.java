@@ -0,0 +1,292 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.dictionary;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The substrings picked for a dictionary, indexed by their positions in the
+ * suffix array so that finding which picked string contains a candidate, or
+ * which a candidate contains, doesn't compare it with every picked string.
+ * Substrings are identified as in SubstringArray, by the position in the
+ * suffix array of one of their occurrences.  Callers keep the picked strings
+ * free of strings contained in another (an antichain), which the lookups
+ * rely on.
+ *
+ * Every string is the prefix of a contiguous range of the suffix array.  So a
+ * candidate is contained in a picked string if the rank (position in the
+ * suffix array) of some suffix of the picked string is in the candidate's
+ * range, and at least the candidate's length of the picked string remains from
+ * there.  maxRemaining is a segment tree over ranks holding the longest
+ * remainder at each.  Once a string has been removed, only strings it was
+ * contained in were picked, so its remainders are left in the tree.
+ *
+ * As no picked string is the prefix of another, their ranges don't overlap,
+ * so the only picked string which can be a prefix of a given suffix is the
+ * one whose range starts closest before its rank.  starts is a bitset of the
+ * range starts with a summary level per 64 bits to find it quickly.
+ */
+class SubstringIndex {
+
+    private byte[] bytes;
+    private int[] suffixArray;
+    private int[] ranks;
+    private int[] maxRemaining;
+    private int[] slotAtRank;
+    private long[][] starts;
+
+    private int[] indexes = new int[16];
+    private int[] lengths = new int[16];
+    private int[] scores = new int[16];
+    private int[] rangeStarts = new int[16];
+    private boolean[] removed = new boolean[16];
+    private int size;
+
+    SubstringIndex(byte[] bytes, final int[] suffixArray, ForkJoinPool pool) {
+        this.bytes = bytes;
+        this.suffixArray = suffixArray;
+        int n = suffixArray.length;
+        final int[] ranks = this.ranks = new int[n];
+        if (pool == null) {
+            for (int i = 0; i < n; i++) {
+                ranks[suffixArray[i]] = i;
+            }
+        }
+        else {
+            pool.invoke(new ParallelChunks(n, 4 * pool.getParallelism()) {
+                protected void run(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        ranks[suffixArray[i]] = i;
+                    }
+                }
+            });
+        }
+        maxRemaining = new int[2 * n];
+        slotAtRank = new int[n];
+
+        int levels = 1;
+        for (int bits = n; bits > 64; bits = (bits + 63) >>> 6) {
+            levels++;
+        }
+        starts = new long[levels][];
+        for (int level = 0, bits = n; level < levels; level++, bits = (bits + 63) >>> 6) {
+            starts[level] = new long[(bits + 63) >>> 6];
+        }
+    }
+
+    /**
+     * Adds the substring, returning its slot.  Slots are numbered in the
+     * order strings are added.
+     */
+    int add(int index, int length, int score) {
+        if (size == indexes.length) {
+            int capacity = 2 * size;
+            indexes = Arrays.copyOf(indexes, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+            rangeStarts = Arrays.copyOf(rangeStarts, capacity);
+            removed = Arrays.copyOf(removed, capacity);
+        }
+        int slot = size++;
+        indexes[slot] = index;
+        lengths[slot] = length;
+        scores[slot] = score;
+
+        int position = suffixArray[index];
+        for (int offset = 0; offset < length; offset++) {
+            int remaining = length - offset;
+            int node = maxRemaining.length / 2 + ranks[position + offset];
+            while (node > 0 && maxRemaining[node] < remaining) {
+                maxRemaining[node] = remaining;
+                node >>>= 1;
+            }
+        }
+
+        int rangeStart = rangeStart(position, length);
+        rangeStarts[slot] = rangeStart;
+        slotAtRank[rangeStart] = slot + 1;
+        for (int level = 0, i = rangeStart; level < starts.length; level++, i >>>= 6) {
+            starts[level][i >>> 6] |= 1L << i;
+        }
+        return slot;
+    }
+
+    void remove(int slot) {
+        removed[slot] = true;
+        int rangeStart = rangeStarts[slot];
+        slotAtRank[rangeStart] = 0;
+        for (int level = 0, i = rangeStart; level < starts.length; level++, i >>>= 6) {
+            if ((starts[level][i >>> 6] &= ~(1L << i)) != 0) {
+                break;
+            }
+        }
+    }
+
+    boolean isRemoved(int slot) {
+        return removed[slot];
+    }
+
+    int length(int slot) {
+        return lengths[slot];
+    }
+
+    /**
+     * True if a string still in the index contains the substring.
+     */
+    boolean covers(int index, int length) {
+        int position = suffixArray[index];
+        int from = rangeStart(position, length) + maxRemaining.length / 2;
+        int to = rangeEnd(position, length) + maxRemaining.length / 2;
+        for (; from < to; from >>>= 1, to >>>= 1) {
+            if ((from & 1) != 0 && maxRemaining[from++] >= length) {
+                return true;
+            }
+            if ((to & 1) != 0 && maxRemaining[--to] >= length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The slots of the strings still in the index which the substring
+     * contains.
+     */
+    int[] containedIn(int index, int length) {
+        int[] slots = new int[0];
+        int position = suffixArray[index];
+        for (int offset = 0; offset < length; offset++) {
+            int rangeStart = previousStart(ranks[position + offset]);
+            if (rangeStart < 0) {
+                continue;
+            }
+            int slot = slotAtRank[rangeStart] - 1;
+            int slotLength = lengths[slot];
+            if (slotLength <= length - offset && rangeEquals(suffixArray[indexes[slot]], position + offset, slotLength)) {
+                int i = 0;
+                while (i < slots.length && slots[i] != slot) {
+                    i++;
+                }
+                if (i == slots.length) {
+                    slots = Arrays.copyOf(slots, i + 1);
+                    slots[i] = slot;
+                }
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * The strings still in the index, in the order they were added.
+     */
+    SubstringArray toSubstringArray() {
+        SubstringArray substrings = new SubstringArray(size);
+        for (int slot = 0; slot < size; slot++) {
+            if (!removed[slot]) {
+                substrings.setScore(substrings.size(), indexes[slot], lengths[slot], scores[slot]);
+            }
+        }
+        return substrings;
+    }
+
+    /**
+     * The largest range start at or before rank, or -1.
+     */
+    private int previousStart(int rank) {
+        int level = 0;
+        int i = rank;
+        while (true) {
+            if (i < 0) {
+                return -1;
+            }
+            long word = starts[level][i >>> 6] & (-1L >>> (63 - (i & 63)));
+            if (word != 0) {
+                i = (i & ~63) + 63 - Long.numberOfLeadingZeros(word);
+                break;
+            }
+            if (++level == starts.length) {
+                return -1;
+            }
+            i = (i >>> 6) - 1;
+        }
+        while (level > 0) {
+            level--;
+            i = (i << 6) + 63 - Long.numberOfLeadingZeros(starts[level][i]);
+        }
+        return i;
+    }
+
+    /**
+     * The first rank whose suffix starts with bytes[position, position + length).
+     */
+    private int rangeStart(int position, int length) {
+        int low = 0, high = ranks[position];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(suffixArray[mid], position, length) < 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * One past the last rank whose suffix starts with bytes[position, position + length).
+     */
+    private int rangeEnd(int position, int length) {
+        int low = ranks[position] + 1, high = suffixArray.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(suffixArray[mid], position, length) <= 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the suffix at suffix with bytes[position, position + length),
+     * returning 0 if the suffix starts with it.
+     */
+    private int compare(int suffix, int position, int length) {
+        for (int i = 0; i < length; i++, suffix++, position++) {
+            if (suffix == bytes.length) {
+                return -1;
+            }
+            int diff = (bytes[suffix] & 0xff) - (bytes[position] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    private boolean rangeEquals(int index1, int index2, int length) {
+        for (; length > 0; length--, index1++, index2++) {
+            if (bytes[index1] != bytes[index2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
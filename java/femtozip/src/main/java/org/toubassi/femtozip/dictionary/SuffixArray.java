@@ -18,15 +18,58 @@
  *   sarray.c: suffixarray generation, written by Sean Quinlan and Sean Doward
  *   lcp.c: lcp computation implemented by Douglass McIlroy, method by Kasai et al.
  *   See comments in sarray.c and lcp.c for more details.
+ *   
+ *   computeSuffixArraySAIS implements SA-IS, the linear time induced sorting
+ *   algorithm of Nong, Zhang and Chan, "Two Efficient Algorithms for Linear
+ *   Time Suffix Array Construction" (2011).
  */
 package org.toubassi.femtozip.dictionary;
 
 import java.io.PrintStream;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class SuffixArray {
 
     private static final int BUCK = Integer.MIN_VALUE;
+    
+    public enum Algorithm {
+        /**
+         * The original port of sarray.c, which sorts by prefix doubling with
+         * a quicksort per bucket.  Slows down badly on repetitive data.
+         */
+        PrefixDoubling,
+        
+        /**
+         * SA-IS, which is linear time whatever the data.
+         */
+        SAIS,
+        
+        /**
+         * Prefix doubling where the suffixes still tied in each round are
+         * sorted in parallel, see computeSuffixArrayParallel.
+         */
+        ParallelPrefixDoubling
+    }
+    
+    /**
+     * Computes the suffix array of bytes with the given algorithm.  Both
+     * produce the same array, which is bytes.length + 1 long, as the empty
+     * suffix (bytes.length) sorts first.
+     */
+    public static int[] computeSuffixArray(byte[] bytes, Algorithm algorithm) {
+        if (algorithm == Algorithm.ParallelPrefixDoubling) {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                return computeSuffixArrayParallel(bytes, pool);
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+        return algorithm == Algorithm.SAIS ? computeSuffixArraySAIS(bytes) : computeSuffixArray(bytes);
+    }
 
     private static final int succ(int i, int h, int n) {
         int t = i + h;
@@ -248,6 +291,402 @@ public class SuffixArray {
             qsort2(a, ai + n - r, asucc, r);
     }
     
+    /**
+     * Computes the same suffix array as computeSuffixArray, in linear time.
+     * Bytes compare unsigned, with the empty suffix at bytes.length acting
+     * as the unique smallest sentinel.  Beyond the returned array this needs
+     * only a bit per byte for suffix types and a bucket per distinct symbol,
+     * as the reduced problems are solved within the suffix array itself.
+     */
+    public static int[] computeSuffixArraySAIS(byte[] bytes) {
+        int n = bytes.length + 1;
+        int[] sa = new int[n];
+        if (n == 1) {
+            return sa;
+        }
+        sais(bytes, null, 0, sa, n, 257);
+        return sa;
+    }
+    
+    /**
+     * The string is bytes (shifted up by one with a virtual 0 sentinel at the
+     * end) or else the n ints of ints starting at offset (which end with
+     * their unique smallest value 0), with an alphabet of k symbols.
+     */
+    private static void sais(byte[] bytes, int[] ints, int offset, int[] sa, int n, int k) {
+        // Classify suffixes as S (true), or L type.  The sentinel is S.
+        long[] types = new long[(n + 63) >>> 6];
+        setType(types, n - 1);
+        for (int i = n - 2, next = chr(bytes, ints, offset, n, n - 1), nextS = 1; i >= 0; i--) {
+            int c = chr(bytes, ints, offset, n, i);
+            if (c < next || (c == next && nextS != 0)) {
+                setType(types, i);
+                nextS = 1;
+            }
+            else {
+                nextS = 0;
+            }
+            next = c;
+        }
+        
+        // Stage 1: sort the LMS substrings by inducing from their positions in their buckets
+        int[] buckets = new int[k];
+        Arrays.fill(sa, 0, n, -1);
+        bucketEnds(bytes, ints, offset, n, buckets);
+        for (int i = 1; i < n; i++) {
+            if (isLMS(types, i)) {
+                sa[--buckets[chr(bytes, ints, offset, n, i)]] = i;
+            }
+        }
+        induce(bytes, ints, offset, sa, n, types, buckets);
+        
+        // Move the sorted LMS substrings to the front, then name them in order,
+        // equal substrings getting equal names.
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            if (isLMS(types, sa[i])) {
+                sa[n1++] = sa[i];
+            }
+        }
+        Arrays.fill(sa, n1, n, -1);
+        int name = 0;
+        for (int i = 0, previous = -1; i < n1; i++) {
+            int position = sa[i];
+            boolean differ = previous == -1;
+            for (int d = 0; !differ; d++) {
+                if (chr(bytes, ints, offset, n, position + d) != chr(bytes, ints, offset, n, previous + d) ||
+                        isS(types, position + d) != isS(types, previous + d)) {
+                    differ = true;
+                }
+                else if (d > 0 && (isLMS(types, position + d) || isLMS(types, previous + d))) {
+                    break;
+                }
+            }
+            if (differ) {
+                name++;
+                previous = position;
+            }
+            // LMS positions are at least 2 apart, so halving them keeps them distinct
+            sa[n1 + (position >> 1)] = name - 1;
+        }
+        for (int i = n - 1, j = n - 1; i >= n1; i--) {
+            if (sa[i] >= 0) {
+                sa[j--] = sa[i];
+            }
+        }
+        
+        // Stage 2: sort the suffixes of the reduced string, the names in LMS order,
+        // which is at the end of sa, into the front of sa
+        int reduced = n - n1;
+        if (name < n1) {
+            sais(null, sa, reduced, sa, n1, name);
+        }
+        else {
+            for (int i = 0; i < n1; i++) {
+                sa[sa[reduced + i]] = i;
+            }
+        }
+        
+        // Stage 3: place the LMS suffixes in their sorted order, and induce the rest from them
+        for (int i = 1, j = reduced; i < n; i++) {
+            if (isLMS(types, i)) {
+                sa[j++] = i;
+            }
+        }
+        for (int i = 0; i < n1; i++) {
+            sa[i] = sa[reduced + sa[i]];
+        }
+        Arrays.fill(sa, n1, n, -1);
+        bucketEnds(bytes, ints, offset, n, buckets);
+        for (int i = n1 - 1; i >= 0; i--) {
+            int j = sa[i];
+            sa[i] = -1;
+            sa[--buckets[chr(bytes, ints, offset, n, j)]] = j;
+        }
+        induce(bytes, ints, offset, sa, n, types, buckets);
+    }
+    
+    /**
+     * Induces the L type suffixes from the sorted S (or LMS) suffixes left to
+     * right, then the S type ones right to left.
+     */
+    private static void induce(byte[] bytes, int[] ints, int offset, int[] sa, int n, long[] types, int[] buckets) {
+        bucketStarts(bytes, ints, offset, n, buckets);
+        for (int i = 0; i < n; i++) {
+            int j = sa[i] - 1;
+            if (j >= 0 && !isS(types, j)) {
+                sa[buckets[chr(bytes, ints, offset, n, j)]++] = j;
+            }
+        }
+        bucketEnds(bytes, ints, offset, n, buckets);
+        for (int i = n - 1; i >= 0; i--) {
+            int j = sa[i] - 1;
+            if (j >= 0 && isS(types, j)) {
+                sa[--buckets[chr(bytes, ints, offset, n, j)]] = j;
+            }
+        }
+    }
+    
+    private static int chr(byte[] bytes, int[] ints, int offset, int n, int i) {
+        if (bytes != null) {
+            return i == n - 1 ? 0 : (bytes[i] & 0xff) + 1;
+        }
+        return ints[offset + i];
+    }
+    
+    private static void bucketStarts(byte[] bytes, int[] ints, int offset, int n, int[] buckets) {
+        countSymbols(bytes, ints, offset, n, buckets);
+        for (int c = 0, sum = 0; c < buckets.length; c++) {
+            int count = buckets[c];
+            buckets[c] = sum;
+            sum += count;
+        }
+    }
+    
+    private static void bucketEnds(byte[] bytes, int[] ints, int offset, int n, int[] buckets) {
+        countSymbols(bytes, ints, offset, n, buckets);
+        for (int c = 0, sum = 0; c < buckets.length; c++) {
+            sum += buckets[c];
+            buckets[c] = sum;
+        }
+    }
+    
+    private static void countSymbols(byte[] bytes, int[] ints, int offset, int n, int[] buckets) {
+        Arrays.fill(buckets, 0);
+        if (bytes != null) {
+            for (int i = 0; i < n - 1; i++) {
+                buckets[(bytes[i] & 0xff) + 1]++;
+            }
+            buckets[0]++;
+        }
+        else {
+            for (int i = 0; i < n; i++) {
+                buckets[ints[offset + i]]++;
+            }
+        }
+    }
+    
+    private static void setType(long[] types, int i) {
+        types[i >>> 6] |= 1L << i;
+    }
+    
+    private static boolean isS(long[] types, int i) {
+        return (types[i >>> 6] & (1L << i)) != 0;
+    }
+    
+    private static boolean isLMS(long[] types, int i) {
+        return i > 0 && isS(types, i) && !isS(types, i - 1);
+    }
+    
+    /**
+     * Computes the same suffix array as computeSuffixArray, by prefix doubling
+     * on pool.  Suffixes are bucketed by their first 2 bytes, then each round
+     * sorts every group of suffixes which are still tied by the rank of the
+     * suffix h further on, doubling h.  The groups are independent, as each
+     * round only reads the previous round's ranks, so they are sorted in
+     * parallel.  Needs 3 ints per byte beyond the returned array.
+     */
+    public static int[] computeSuffixArrayParallel(byte[] bytes, ForkJoinPool pool) {
+        final int n = bytes.length + 1;
+        final int[] sa = new int[n];
+        final int[] ranks = new int[n];
+        
+        // Bytes are shifted up by one, so the sentinel (0) sorts first
+        int[] buckets = new int[257 * 257];
+        for (int i = 0; i < n; i++) {
+            buckets[pairKey(bytes, i)]++;
+        }
+        int[] groups = new int[16];
+        int numGroups = 0;
+        for (int key = 0, start = 0; key < buckets.length; key++) {
+            int count = buckets[key];
+            if (count > 1) {
+                if (2 * numGroups + 2 > groups.length) {
+                    groups = Arrays.copyOf(groups, 2 * groups.length);
+                }
+                groups[2 * numGroups] = start;
+                groups[2 * numGroups + 1] = count;
+                numGroups++;
+            }
+            buckets[key] = start;
+            start += count;
+        }
+        for (int i = 0; i < n; i++) {
+            ranks[i] = buckets[pairKey(bytes, i)];
+        }
+        for (int i = 0; i < n; i++) {
+            sa[buckets[pairKey(bytes, i)]++] = i;
+        }
+        
+        final int[] newRanks = new int[n];
+        for (int h = 2; numGroups > 0; h <<= 1) {
+            final int[] sorting = groups;
+            groups = pool.invoke(new SortGroups(sa, ranks, newRanks, h, sorting, 0, numGroups));
+            
+            // Only now update the ranks, as every group's sort reads the previous round's
+            pool.invoke(new ParallelChunks(numGroups, 4 * pool.getParallelism()) {
+                protected void run(int from, int to) {
+                    for (int g = from; g < to; g++) {
+                        for (int p = sorting[2 * g], end = p + sorting[2 * g + 1]; p < end; p++) {
+                            ranks[sa[p]] = newRanks[p];
+                        }
+                    }
+                }
+            });
+            numGroups = groups.length / 2;
+        }
+        return sa;
+    }
+    
+    private static int pairKey(byte[] bytes, int i) {
+        int n = bytes.length;
+        int first = i < n ? (bytes[i] & 0xff) + 1 : 0;
+        int second = i + 1 < n ? (bytes[i + 1] & 0xff) + 1 : 0;
+        return first * 257 + second;
+    }
+    
+    /**
+     * Sorts groups [from, to) of tied suffixes by the rank of the suffix h
+     * further on, recording each suffix's new rank (the position its new
+     * group starts at) in newRanks by position, and returning the new groups
+     * which are still tied.
+     */
+    private static class SortGroups extends RecursiveTask<int[]> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private static final int Grain = 64 * 1024;
+        
+        private int[] sa;
+        private int[] ranks;
+        private int[] newRanks;
+        private int h;
+        private int[] groups;
+        private int from;
+        private int to;
+        
+        SortGroups(int[] sa, int[] ranks, int[] newRanks, int h, int[] groups, int from, int to) {
+            this.sa = sa;
+            this.ranks = ranks;
+            this.newRanks = newRanks;
+            this.h = h;
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+        }
+        
+        protected int[] compute() {
+            long total = 0;
+            for (int g = from; g < to; g++) {
+                total += groups[2 * g + 1];
+            }
+            if (total > Grain && to - from > 1) {
+                int split = from + 1;
+                for (long half = groups[2 * from + 1]; split < to - 1 && half < total / 2; split++) {
+                    half += groups[2 * split + 1];
+                }
+                SortGroups right = new SortGroups(sa, ranks, newRanks, h, groups, split, to);
+                right.fork();
+                int[] left = new SortGroups(sa, ranks, newRanks, h, groups, from, split).compute();
+                int[] rightGroups = right.join();
+                int[] all = Arrays.copyOf(left, left.length + rightGroups.length);
+                System.arraycopy(rightGroups, 0, all, left.length, rightGroups.length);
+                return all;
+            }
+            
+            int[] sa = this.sa;
+            int[] ranks = this.ranks;
+            int[] newRanks = this.newRanks;
+            int h = this.h;
+            long[] keys = new long[0];
+            int[] tied = new int[16];
+            int numTied = 0;
+            for (int g = from; g < to; g++) {
+                int start = groups[2 * g];
+                int length = groups[2 * g + 1];
+                if (keys.length < length) {
+                    keys = new long[length];
+                }
+                for (int k = 0; k < length; k++) {
+                    int i = sa[start + k];
+                    keys[k] = ((long)ranks[i + h] << 32) | i;
+                }
+                Arrays.sort(keys, 0, length);
+                
+                int groupStart = start;
+                long previous = keys[0] >>> 32;
+                for (int k = 0; k < length; k++) {
+                    long key = keys[k] >>> 32;
+                    if (key != previous) {
+                        if (start + k - groupStart > 1) {
+                            if (numTied + 2 > tied.length) {
+                                tied = Arrays.copyOf(tied, 2 * tied.length);
+                            }
+                            tied[numTied++] = groupStart;
+                            tied[numTied++] = start + k - groupStart;
+                        }
+                        groupStart = start + k;
+                        previous = key;
+                    }
+                    sa[start + k] = (int)keys[k];
+                    newRanks[start + k] = groupStart;
+                }
+                if (start + length - groupStart > 1) {
+                    if (numTied + 2 > tied.length) {
+                        tied = Arrays.copyOf(tied, 2 * tied.length);
+                    }
+                    tied[numTied++] = groupStart;
+                    tied[numTied++] = start + length - groupStart;
+                }
+            }
+            return Arrays.copyOf(tied, numTied);
+        }
+    }
+    
+    /**
+     * Computes the same LCP array as computeLCP(byte[], int[]) on pool.  The
+     * text is split into chunks, each of which runs Kasai et al. on its own,
+     * which only costs rematching the first suffix of each chunk.
+     */
+    public static int[] computeLCP(final byte[] bytes, final int[] suffixArray, ForkJoinPool pool) {
+        final int n = suffixArray.length;
+        final int[] lcp = new int[n];
+        final int[] inv = new int[n];
+        int numChunks = 4 * pool.getParallelism();
+        
+        pool.invoke(new ParallelChunks(n, numChunks) {
+            protected void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    inv[suffixArray[i]] = i;
+                }
+            }
+        });
+        
+        pool.invoke(new ParallelChunks(n - 1, numChunks) {
+            protected void run(int from, int to) {
+                int[] a = suffixArray;
+                byte[] s = bytes;
+                int h = 0;
+                for (int i = from; i < to; i++) {
+                    int x = inv[i];
+                    int j = a[x - 1];
+                    int p1 = i + h;
+                    int p0 = j + h;
+                    while (p1 < (n-1) && p0 < (n-1) && s[p1++] == s[p0++]) {
+                        h++;
+                    }
+                    lcp[x] = h;
+                    if (h > 0) {
+                        h--;
+                    }
+                }
+            }
+        });
+        
+        lcp[0] = 0;
+        return lcp;
+    }
+    
     public static int[] computeLCP(byte[] bytes, int[] suffixArray) {
         int[] a = suffixArray;
         byte[] s = bytes;
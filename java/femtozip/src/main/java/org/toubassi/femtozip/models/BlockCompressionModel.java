@@ -0,0 +1,291 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.toubassi.femtozip.CompressionModel;
+import org.toubassi.femtozip.DocumentList;
+import org.toubassi.femtozip.util.StreamUtil;
+
+/**
+ * Wraps another model to compress large documents as independent blocks,
+ * which are compressed (and decompressed) in parallel on a ForkJoinPool.
+ * Each block is compressed by the wrapped model on its own, so it uses the
+ * shared dictionary but only refers back to data within the block.
+ * 
+ * The compressed form is the number of blocks, then the uncompressed and
+ * compressed length of each block (all as variable length ints), followed
+ * by the compressed blocks.  Documents no bigger than the block size are a
+ * single block, at a cost of a few bytes over the wrapped model.
+ */
+public class BlockCompressionModel extends CompressionModel {
+    
+    public static final int DefaultBlockSize = 1024 * 1024;
+    
+    private static ForkJoinPool defaultPool;
+    
+    private CompressionModel model;
+    private int blockSize;
+    private ForkJoinPool pool;
+    
+    public BlockCompressionModel() {
+        this(new FemtoZipCompressionModel());
+    }
+    
+    public BlockCompressionModel(CompressionModel model) {
+        this(model, DefaultBlockSize);
+    }
+    
+    public BlockCompressionModel(CompressionModel model, int blockSize) {
+        this.model = model;
+        setBlockSize(blockSize);
+    }
+    
+    public CompressionModel getModel() {
+        return model;
+    }
+    
+    public void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size " + blockSize + " must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+    
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    /**
+     * Sets the pool blocks are compressed on.  By default a pool with one
+     * thread per processor is shared by all BlockCompressionModels.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+    
+    public ForkJoinPool getPool() {
+        if (pool == null) {
+            return getDefaultPool();
+        }
+        return pool;
+    }
+    
+    private static synchronized ForkJoinPool getDefaultPool() {
+        if (defaultPool == null) {
+            defaultPool = new ForkJoinPool();
+        }
+        return defaultPool;
+    }
+    
+    public void setDictionary(byte[] dictionary) {
+        model.setDictionary(dictionary);
+    }
+    
+    public byte[] getDictionary() {
+        return model.getDictionary();
+    }
+    
+    public void setMaxDictionaryLength(int length) {
+        super.setMaxDictionaryLength(length);
+        model.setMaxDictionaryLength(length);
+    }
+    
+    public void setDictionaryMemoryBudget(long bytes) {
+        super.setDictionaryMemoryBudget(bytes);
+        model.setDictionaryMemoryBudget(bytes);
+    }
+    
+    public double getDictionaryCoverage() {
+        return model.getDictionaryCoverage();
+    }
+    
+    public void setCompressionLevel(int level) {
+        super.setCompressionLevel(level);
+        model.setCompressionLevel(level);
+    }
+    
+    public void setHashBits(int hashBits) {
+        super.setHashBits(hashBits);
+        model.setHashBits(hashBits);
+    }
+    
+    public void setPersistDictionaryHash(boolean persist) {
+        super.setPersistDictionaryHash(persist);
+        model.setPersistDictionaryHash(persist);
+    }
+    
+    public void load(DataInputStream in) throws IOException {
+        blockSize = in.readInt();
+        if (blockSize < 1) {
+            throw new IOException("Bad model in stream.  Block size " + blockSize + " must be positive");
+        }
+        model = instantiateCompressionModel(in.readUTF());
+        model.load(in);
+        // Report the settings the wrapped model loaded with
+        super.setCompressionLevel(model.getCompressionLevel());
+        super.setHashBits(model.getHashBits());
+        super.setPersistDictionaryHash(model.getPersistDictionaryHash());
+    }
+    
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(blockSize);
+        out.writeUTF(model.getClass().getName());
+        model.save(out);
+    }
+    
+    public void build(DocumentList documents) throws IOException {
+        model.build(documents);
+    }
+    
+    public void encodeLiteral(int aByte, Object context) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void encodeSubstring(int offset, int length, Object context) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void endEncoding(Object context) {
+        throw new UnsupportedOperationException();
+    }
+    
+    public void compress(byte[] data, OutputStream out) throws IOException {
+        int numBlocks = (int)(((long)data.length + blockSize - 1) / blockSize);
+        List<Block> blocks = new ArrayList<Block>(numBlocks);
+        for (int i = 0; i < numBlocks; i++) {
+            int start = i * blockSize;
+            blocks.add(new Block(true, data, start, Math.min(blockSize, data.length - start), null, 0));
+        }
+        run(blocks);
+        
+        StreamUtil.writeVarInt(out, numBlocks);
+        for (Block block : blocks) {
+            StreamUtil.writeVarInt(out, block.length);
+            StreamUtil.writeVarInt(out, block.result.length);
+        }
+        for (Block block : blocks) {
+            out.write(block.result);
+        }
+    }
+    
+    public byte[] decompress(byte[] compressedData) {
+        try {
+            ByteArrayInputStream in = new ByteArrayInputStream(compressedData);
+            int numBlocks = StreamUtil.readVarInt(in);
+            if (numBlocks < 0 || numBlocks > compressedData.length) {
+                throw new IOException("Corrupt block header, " + numBlocks + " blocks");
+            }
+            int[] lengths = new int[numBlocks];
+            int[] compressedLengths = new int[numBlocks];
+            long totalLength = 0;
+            long totalCompressedLength = 0;
+            for (int i = 0; i < numBlocks; i++) {
+                lengths[i] = StreamUtil.readVarInt(in);
+                compressedLengths[i] = StreamUtil.readVarInt(in);
+                totalLength += lengths[i];
+                totalCompressedLength += compressedLengths[i];
+            }
+            if (totalLength > Integer.MAX_VALUE || totalCompressedLength != in.available()) {
+                throw new IOException("Corrupt block header");
+            }
+            
+            byte[] data = new byte[(int)totalLength];
+            List<Block> blocks = new ArrayList<Block>(numBlocks);
+            int start = compressedData.length - in.available();
+            int outputStart = 0;
+            for (int i = 0; i < numBlocks; i++) {
+                Block block = new Block(false, compressedData, start, compressedLengths[i], data, outputStart);
+                block.expectedLength = lengths[i];
+                blocks.add(block);
+                start += compressedLengths[i];
+                outputStart += lengths[i];
+            }
+            run(blocks);
+            return data;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private void run(List<Block> blocks) {
+        if (blocks.size() == 1) {
+            blocks.get(0).compute();
+        }
+        else if (blocks.size() > 1) {
+            getPool().invoke(new AllBlocks(blocks));
+        }
+    }
+    
+    private static class AllBlocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private List<Block> blocks;
+        
+        AllBlocks(List<Block> blocks) {
+            this.blocks = blocks;
+        }
+        
+        protected void compute() {
+            invokeAll(blocks);
+        }
+    }
+    
+    private class Block extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        boolean compress;
+        byte[] input;
+        int start;
+        int length;
+        byte[] output;
+        int outputStart;
+        int expectedLength;
+        byte[] result;
+        
+        Block(boolean compress, byte[] input, int start, int length, byte[] output, int outputStart) {
+            this.compress = compress;
+            this.input = input;
+            this.start = start;
+            this.length = length;
+            this.output = output;
+            this.outputStart = outputStart;
+        }
+        
+        protected void compute() {
+            byte[] bytes = start == 0 && length == input.length ? input : Arrays.copyOfRange(input, start, start + length);
+            if (compress) {
+                result = model.compress(bytes);
+            }
+            else {
+                byte[] decompressed = model.decompress(bytes);
+                if (decompressed.length != expectedLength) {
+                    throw new RuntimeException("Corrupt block, expected " + expectedLength + " bytes but got " + decompressed.length);
+                }
+                System.arraycopy(decompressed, 0, output, outputStart, decompressed.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import org.toubassi.femtozip.substring.SubstringPacker;
+
+/**
+ * The compiled form of a built FemtoZipCompressionModel: its dictionary and
+ * dictionary hash, and its codes packed for encoding and decoding.  Nothing
+ * here changes once compiled, so any number of threads can share one, each
+ * compressing and decompressing with its own Compressor and Decompressor,
+ * which hold all of the per document state.
+ * 
+ * The dictionary is not copied (the dictionary hash indexes the same array),
+ * so callers must not modify the array they passed to setDictionary, or got
+ * from getDictionary, while the model is in use.
+ * 
+ * @see FemtoZipCompressionModel#getCompiledModel()
+ */
+public final class CompiledModel {
+    
+    private final byte[] dictionary;
+    private final SubstringPacker packer;
+    private final FemtoZipHuffmanModel codeModel;
+    private final boolean optimalParsing;
+    
+    /**
+     * packer must only be used through its pack methods taking a caller
+     * owned PrefixHash (which leave it untouched), and codeModel only for
+     * its packed codes and costs (not its stateful HuffmanModel methods).
+     */
+    CompiledModel(byte[] dictionary, SubstringPacker packer, FemtoZipHuffmanModel codeModel, boolean optimalParsing) {
+        this.dictionary = dictionary == null ? new byte[0] : dictionary;
+        this.packer = packer;
+        this.codeModel = codeModel;
+        this.optimalParsing = optimalParsing;
+    }
+    
+    /**
+     * Creates a compressor for one thread's use.  Compressors keep their
+     * hash tables and buffers between documents, so should be reused.
+     */
+    public Compressor createCompressor() {
+        return new Compressor(this, true);
+    }
+    
+    /**
+     * Creates a decompressor for one thread's use.
+     */
+    public Decompressor createDecompressor() {
+        return new Decompressor(this);
+    }
+    
+    public int getCompressionLevel() {
+        return packer.getCompressionLevel();
+    }
+    
+    public int getNumRepeatOffsets() {
+        return codeModel.getNumRepeatOffsets();
+    }
+    
+    public boolean getOptimalParsing() {
+        return optimalParsing;
+    }
+    
+    byte[] getDictionary() {
+        return dictionary;
+    }
+    
+    SubstringPacker getSubstringPacker() {
+        return packer;
+    }
+    
+    FemtoZipHuffmanModel getCodeModel() {
+        return codeModel;
+    }
+    
+    boolean isCompiledFrom(SubstringPacker packer, FemtoZipHuffmanModel codeModel, boolean optimalParsing) {
+        return this.packer == packer && this.codeModel == codeModel && this.optimalParsing == optimalParsing;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.toubassi.femtozip.coding.huffman.BitOutput;
+import org.toubassi.femtozip.coding.huffman.PackedHuffmanCode;
+import org.toubassi.femtozip.substring.PrefixHash;
+import org.toubassi.femtozip.substring.RecentOffsets;
+import org.toubassi.femtozip.substring.SubstringPacker;
+
+/**
+ * Compresses documents with a CompiledModel.  A Compressor is not thread
+ * safe, so each thread needs its own, but it should be reused from one
+ * document to the next, as it keeps the hash table for finding matches
+ * within a document and its output buffer.
+ */
+public class Compressor implements SubstringPacker.Consumer {
+    
+    // Scratch for documents bigger than this is thrown away after use, so an
+    // occasional huge document doesn't pin huge buffers to the Compressor.
+    private static final int MaxRetainedLength = 128 * 1024;
+    
+    private final SubstringPacker packer;
+    private final SubstringPacker.CostModel costs;
+    private final PackedHuffmanCode literalLengthCode;
+    private final PackedHuffmanCode offsetNibble0Code;
+    private final PackedHuffmanCode offsetNibble1Code;
+    private final PackedHuffmanCode offsetNibble2Code;
+    private final PackedHuffmanCode offsetNibble3Code;
+    private final int eofSymbol;
+    private final RecentOffsets recentOffsets;
+    private final boolean ownsHash;
+    private PrefixHash hash;
+    private PrefixHash windowHash;
+    private byte[] buffer;
+    private BitOutput bitOut;
+    
+    /**
+     * If ownsHash is false, documents are hashed with the packer's per thread
+     * hash instead, for callers which create a Compressor per document.
+     */
+    Compressor(CompiledModel model, boolean ownsHash) {
+        FemtoZipHuffmanModel codeModel = model.getCodeModel();
+        packer = model.getSubstringPacker();
+        costs = model.getOptimalParsing() ? codeModel : null;
+        literalLengthCode = codeModel.getLiteralLengthCode();
+        offsetNibble0Code = codeModel.getOffsetNibbleCode(0);
+        offsetNibble1Code = codeModel.getOffsetNibbleCode(1);
+        offsetNibble2Code = codeModel.getOffsetNibbleCode(2);
+        offsetNibble3Code = codeModel.getOffsetNibbleCode(3);
+        eofSymbol = codeModel.getEOFSymbol();
+        recentOffsets = new RecentOffsets(model.getNumRepeatOffsets());
+        this.ownsHash = ownsHash;
+    }
+    
+    public byte[] compress(byte[] data) {
+        // Roughly what a templated document compresses to, so the buffer rarely grows
+        int capacity = data.length / 4 + 16;
+        begin(new BitOutput(buffer != null && buffer.length >= capacity ? buffer : new byte[capacity], 0));
+        pack(data, this, null);
+        byte[] bytes = bitOut.getBytes();
+        if (bytes.length <= MaxRetainedLength) {
+            buffer = bytes;
+        }
+        return Arrays.copyOf(bytes, bitOut.getLength());
+    }
+    
+    /**
+     * Compresses data into dest starting at destOffset, returning the
+     * compressed length, or -(required length) if it doesn't fit.
+     * 
+     * @see org.toubassi.femtozip.CompressionModel#compress(byte[], byte[], int)
+     */
+    public int compress(byte[] data, byte[] dest, int destOffset) {
+        begin(new BitOutput(dest, destOffset));
+        pack(data, this, null);
+        // If the output didn't fit, bitOut will have moved to a bigger array
+        return bitOut.getBytes() == dest ? bitOut.getLength() : -bitOut.getLength();
+    }
+    
+    /**
+     * Compresses data to out, closing it when done.
+     */
+    public void compress(byte[] data, OutputStream out) throws IOException {
+        try {
+            begin(out);
+            pack(data, this, null);
+        }
+        catch (RuntimeException e) {
+            // The encode methods wrap the stream's IOExceptions
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Starts a document written to out, for FemtoZipOutputStream to pack a
+     * piece at a time.
+     */
+    void begin(OutputStream out) {
+        begin(new BitOutput(out));
+    }
+    
+    private void begin(BitOutput bitOut) {
+        this.bitOut = bitOut;
+        recentOffsets.clear();
+    }
+    
+    /**
+     * Packs data to consumer.  window is the bytes of the dictionary and the
+     * document before data (at most the maximum offset), or null to match
+     * against the dictionary alone.
+     */
+    void pack(byte[] data, SubstringPacker.Consumer consumer, byte[] window) {
+        SubstringPacker packer = this.packer;
+        if (window != null) {
+            if (windowHash == null) {
+                windowHash = new PrefixHash(new byte[0], false, packer.getCompressionLevel(), packer.getHashBits());
+            }
+            windowHash.reset(window);
+            for (int i = 0, count = window.length - PrefixHash.PrefixLength; i < count; i++) {
+                windowHash.put(i);
+            }
+            packer = new SubstringPacker(window, packer.getCompressionLevel(), windowHash);
+            packer.setNumRepeatOffsets(this.packer.getNumRepeatOffsets());
+        }
+        else if (!ownsHash) {
+            packer.pack(data, consumer, null, costs);
+            return;
+        }
+        
+        PrefixHash hash = this.hash;
+        if (data.length > MaxRetainedLength) {
+            hash = new PrefixHash(new byte[0], false, packer.getCompressionLevel(), packer.getHashBits());
+        }
+        else if (hash == null) {
+            this.hash = hash = new PrefixHash(new byte[0], false, packer.getCompressionLevel(), packer.getHashBits());
+        }
+        packer.pack(data, consumer, null, hash, costs);
+    }
+    
+    public void encodeLiteral(int aByte, Object context) {
+        try {
+            literalLengthCode.encode(aByte, bitOut);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public void encodeSubstring(int offset, int length, Object context) {
+        try {
+            BitOutput bitOut = this.bitOut;
+            if (length < 1 || length > 255) {
+                throw new IllegalArgumentException("Length " + length + " out of range [1,255]");
+            }
+            
+            offset = -offset;
+            if (offset < 1 || offset > (2<<15)-1) {
+                throw new IllegalArgumentException("Offset " + offset + " out of range [1, 65535]");
+            }
+            
+            int repeatIndex = recentOffsets.use(offset);
+            if (repeatIndex >= 0) {
+                literalLengthCode.encode(FemtoZipHuffmanModel.getRepeatSymbol(repeatIndex, length), bitOut);
+                return;
+            }
+            
+            literalLengthCode.encode(256 + length, bitOut);
+            offsetNibble0Code.encode(offset & 0xf, bitOut);
+            offsetNibble1Code.encode((offset >> 4) & 0xf, bitOut);
+            offsetNibble2Code.encode((offset >> 8) & 0xf, bitOut);
+            offsetNibble3Code.encode((offset >> 12) & 0xf, bitOut);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public void endEncoding(Object context) {
+        try {
+            literalLengthCode.encode(eofSymbol, bitOut);
+            bitOut.close();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.toubassi.femtozip.coding.huffman.HuffmanDecoder;
+import org.toubassi.femtozip.coding.huffman.PackedHuffmanCode;
+import org.toubassi.femtozip.substring.RecentOffsets;
+
+/**
+ * Decompresses documents with a CompiledModel.  A Decompressor is not thread
+ * safe, so each thread needs its own.  It is cheap to create, but keeps the
+ * scratch buffer used when decompressing into a direct ByteBuffer, so is
+ * worth reusing for that.
+ */
+public class Decompressor {
+    
+    // Scratch bigger than this is thrown away after use
+    private static final int MaxRetainedLength = 128 * 1024;
+    
+    private final byte[] dictionary;
+    private final PackedHuffmanCode literalLengthCode;
+    private final PackedHuffmanCode offsetNibble0Code;
+    private final PackedHuffmanCode offsetNibble1Code;
+    private final PackedHuffmanCode offsetNibble2Code;
+    private final PackedHuffmanCode offsetNibble3Code;
+    private final PackedHuffmanCode[] offsetNibbleCodes;
+    private final int eofSymbol;
+    private final RecentOffsets recentOffsets;
+    private byte[] scratch;
+    
+    Decompressor(CompiledModel model) {
+        FemtoZipHuffmanModel codeModel = model.getCodeModel();
+        dictionary = model.getDictionary();
+        literalLengthCode = codeModel.getLiteralLengthCode();
+        offsetNibble0Code = codeModel.getOffsetNibbleCode(0);
+        offsetNibble1Code = codeModel.getOffsetNibbleCode(1);
+        offsetNibble2Code = codeModel.getOffsetNibbleCode(2);
+        offsetNibble3Code = codeModel.getOffsetNibbleCode(3);
+        offsetNibbleCodes = new PackedHuffmanCode[] {offsetNibble0Code, offsetNibble1Code, offsetNibble2Code, offsetNibble3Code};
+        eofSymbol = codeModel.getEOFSymbol();
+        recentOffsets = new RecentOffsets(model.getNumRepeatOffsets());
+    }
+    
+    public byte[] decompress(byte[] compressedBytes) {
+        return decompress(compressedBytes, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Stops decoding as soon as maxOutputBytes have been produced.
+     */
+    public byte[] decompress(byte[] compressedBytes, int maxOutputBytes) {
+        if (maxOutputBytes < 0) {
+            throw new IllegalArgumentException("maxOutputBytes " + maxOutputBytes + " is negative");
+        }
+        // Documents typically compress 4x or better, so this rarely grows more than once.
+        int capacity = (int)Math.min(maxOutputBytes, compressedBytes.length * 4L + 64);
+        Output output = new Output(new byte[capacity], 0, maxOutputBytes, true);
+        decompress(new HuffmanDecoder(compressedBytes, 0, compressedBytes.length), output);
+        return output.length == output.bytes.length ? output.bytes : Arrays.copyOf(output.bytes, output.length);
+    }
+    
+    public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+        return decompress(new HuffmanDecoder(src, srcOffset, srcLength), new Output(dest, destOffset, dest.length, false));
+    }
+    
+    public int decompress(ByteBuffer src, ByteBuffer dest) {
+        HuffmanDecoder decoder = new HuffmanDecoder(null, src);
+        int length;
+        if (dest.hasArray()) {
+            int offset = dest.arrayOffset() + dest.position();
+            length = decompress(decoder, new Output(dest.array(), offset, dest.arrayOffset() + dest.limit(), false));
+            if (length >= 0) {
+                dest.position(dest.position() + length);
+            }
+        }
+        else {
+            // A direct (or read only) buffer has no array to decode into
+            int capacity = src.remaining() * 4 + 64;
+            Output output = new Output(scratch != null && scratch.length >= capacity ? scratch : new byte[capacity], 0, Integer.MAX_VALUE, false);
+            length = decompress(decoder, output);
+            if (output.bytes.length <= MaxRetainedLength) {
+                scratch = output.bytes;
+            }
+            if (length > dest.remaining()) {
+                return -length;
+            }
+            dest.put(output.bytes, 0, length);
+        }
+        if (length >= 0) {
+            src.position(src.limit());
+        }
+        return length;
+    }
+    
+    /**
+     * Decodes symbols straight into the output array, rather than through a
+     * SubstringUnpacker, as this is the most latency sensitive path.  Returns
+     * the decompressed length, or if the data doesn't fit before the output's
+     * limit, either the truncated length or -(required length).
+     */
+    private int decompress(HuffmanDecoder decoder, Output output) {
+        try {
+            PackedHuffmanCode literalLengthCode = this.literalLengthCode;
+            PackedHuffmanCode offsetNibble0Code = this.offsetNibble0Code;
+            PackedHuffmanCode offsetNibble1Code = this.offsetNibble1Code;
+            PackedHuffmanCode offsetNibble2Code = this.offsetNibble2Code;
+            PackedHuffmanCode offsetNibble3Code = this.offsetNibble3Code;
+            int eofSymbol = this.eofSymbol;
+            byte[] dictionary = this.dictionary;
+            RecentOffsets recentOffsets = this.recentOffsets;
+            recentOffsets.clear();
+            
+            byte[] out = output.bytes;
+            int start = output.offset;
+            int length = start;
+            int limit = output.limit;
+            int capacity = Math.min(out.length, limit);
+            
+            int nextSymbol;
+            while ((nextSymbol = decoder.decodeSymbol(literalLengthCode)) != eofSymbol) {
+                if (nextSymbol < 256) {
+                    if (length == capacity) {
+                        if (capacity == limit) {
+                            if (output.truncate) {
+                                break;
+                            }
+                            return -(length - start + 1 + remainingLength(decoder));
+                        }
+                        out = grow(out, length + 1, limit);
+                        capacity = Math.min(out.length, limit);
+                    }
+                    out[length++] = (byte)nextSymbol;
+                    continue;
+                }
+                
+                int offset;
+                int matchLength = nextSymbol & 0xff;
+                if (nextSymbol > 511) {
+                    int repeatIndex = (nextSymbol - 512) >> 8;
+                    offset = repeatIndex < recentOffsets.size() ? recentOffsets.get(repeatIndex) : 0;
+                    if (offset == 0) {
+                        throw new IOException("Corrupt compressed data, repeat offset " + repeatIndex + " not set");
+                    }
+                }
+                else {
+                    offset = decoder.decodeSymbol(offsetNibble0Code) | (decoder.decodeSymbol(offsetNibble1Code) << 4) |
+                            (decoder.decodeSymbol(offsetNibble2Code) << 8) | (decoder.decodeSymbol(offsetNibble3Code) << 12);
+                }
+                recentOffsets.use(offset);
+                
+                boolean truncated = false;
+                if (length + matchLength > capacity) {
+                    if (length + matchLength > limit) {
+                        if (!output.truncate) {
+                            return -(length - start + matchLength + remainingLength(decoder));
+                        }
+                        matchLength = limit - length;
+                        truncated = true;
+                    }
+                    if (length + matchLength > capacity) {
+                        out = grow(out, length + matchLength, limit);
+                        capacity = Math.min(out.length, limit);
+                    }
+                }
+                int from = length - offset;
+                if (from < start) {
+                    // Starts in the dictionary, and may run on into the output
+                    int fromDictionary = Math.min(matchLength, start - from);
+                    System.arraycopy(dictionary, dictionary.length - (start - from), out, length, fromDictionary);
+                    length += fromDictionary;
+                    matchLength -= fromDictionary;
+                    from = start;
+                }
+                if (length - from >= matchLength) {
+                    System.arraycopy(out, from, out, length, matchLength);
+                    length += matchLength;
+                }
+                else {
+                    // Overlaps what it is copying, so repeats it
+                    for (int end = length + matchLength; length < end; ) {
+                        out[length++] = out[from++];
+                    }
+                }
+                if (truncated) {
+                    break;
+                }
+            }
+            output.bytes = out;
+            output.length = length;
+            return length - start;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private static byte[] grow(byte[] out, int minLength, int limit) {
+        return Arrays.copyOf(out, (int)Math.min(limit, Math.max(2L * out.length, minLength)));
+    }
+    
+    /**
+     * Decodes the rest of the symbols just to total up their length.
+     */
+    private int remainingLength(HuffmanDecoder decoder) throws IOException {
+        int length = 0;
+        int nextSymbol;
+        while ((nextSymbol = decoder.decodeSymbol(literalLengthCode)) != eofSymbol) {
+            if (nextSymbol < 256) {
+                length++;
+                continue;
+            }
+            length += nextSymbol & 0xff;
+            if (nextSymbol < 512) {
+                for (int i = 0; i < 4; i++) {
+                    decoder.decodeSymbol(offsetNibbleCodes[i]);
+                }
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Where decompress writes.  bytes is grown (into a new array) as needed up
+     * to limit, where decompress either stops, if truncate is set, or fails.
+     */
+    private static class Output {
+        byte[] bytes;
+        int offset;
+        int limit;
+        boolean truncate;
+        int length;
+        
+        Output(byte[] bytes, int offset, int limit, boolean truncate) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.limit = limit;
+            this.truncate = truncate;
+        }
+    }
+    
+}
@@ -15,27 +15,88 @@
  */
 package org.toubassi.femtozip.models;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.toubassi.femtozip.CompressionModel;
 import org.toubassi.femtozip.DocumentList;
 import org.toubassi.femtozip.coding.huffman.FrequencyHuffmanModel;
-import org.toubassi.femtozip.coding.huffman.HuffmanDecoder;
-import org.toubassi.femtozip.coding.huffman.HuffmanEncoder;
+import org.toubassi.femtozip.substring.RecentOffsets;
 import org.toubassi.femtozip.substring.SubstringPacker;
-import org.toubassi.femtozip.substring.SubstringUnpacker;
 
 public class FemtoZipCompressionModel extends CompressionModel {
     
+    public static final int MaxRepeatOffsets = 4;
+    
     private FemtoZipHuffmanModel codeModel;
+    private boolean optimalParsing;
+    private int numRepeatOffsets;
+    private int maxCodeLength;
+    private volatile CompiledModel compiled;
+    
+    /**
+     * Sets how many of the most recently used offsets a substring can refer
+     * to with a single "repeat" symbol, rather than a length followed by 4
+     * offset nibbles.  0 (the default) is the original format.  This takes
+     * effect when the model is built, and is saved with the model.  Until
+     * then, a built or loaded model keeps compressing with the number it
+     * was built with.
+     */
+    public void setNumRepeatOffsets(int numRepeatOffsets) {
+        if (numRepeatOffsets < 0 || numRepeatOffsets > MaxRepeatOffsets) {
+            throw new IllegalArgumentException("Repeat offsets " + numRepeatOffsets + " out of range [0, " + MaxRepeatOffsets + "]");
+        }
+        this.numRepeatOffsets = numRepeatOffsets;
+    }
+    
+    public int getNumRepeatOffsets() {
+        return numRepeatOffsets;
+    }
+    
+    /**
+     * When set, documents are parsed for the fewest bits as priced by the
+     * trained code lengths, rather than greedily.  This is much slower to
+     * compress (every position is searched, so lower compression levels help),
+     * but produces smaller output which is no slower to decompress.
+     * It doesn't change the format, so it isn't saved with the model.
+     */
+    public void setOptimalParsing(boolean optimalParsing) {
+        this.optimalParsing = optimalParsing;
+    }
+    
+    public boolean getOptimalParsing() {
+        return optimalParsing;
+    }
+    
+    /**
+     * Limits the length of the codes built for the model (0, the default, for
+     * no limit).  Codes of at most DecodeTable.MaxTopLevelBits decode with a
+     * single table lookup, at a small cost in compression.  The literal/length
+     * alphabet needs at least 10 bits, or 11 with more than 1 repeat offset.
+     * This takes effect when the model is built.
+     */
+    public void setMaxCodeLength(int maxCodeLength) {
+        this.maxCodeLength = maxCodeLength;
+    }
+    
+    public int getMaxCodeLength() {
+        return maxCodeLength;
+    }
     
     public void load(DataInputStream in) throws IOException {
         super.load(in);
-        codeModel = new FemtoZipHuffmanModel(in);
+        FemtoZipHuffmanModel codeModel = new FemtoZipHuffmanModel(in);
+        int eofSymbol = codeModel.getEOFSymbol();
+        int numRepeatOffsets = codeModel.getNumRepeatOffsets();
+        if (numRepeatOffsets < 0 || numRepeatOffsets > MaxRepeatOffsets ||
+                eofSymbol != FemtoZipHuffmanModel.getLiteralLengthSymbolCount(numRepeatOffsets) - 1) {
+            throw new IOException("Bad model in stream.  EOF symbol " + eofSymbol + " does not give [0, " + MaxRepeatOffsets + "] repeat offsets");
+        }
+        this.codeModel = codeModel;
+        this.numRepeatOffsets = numRepeatOffsets;
     }
 
     public void save(DataOutputStream out) throws IOException {
@@ -43,91 +104,118 @@ public class FemtoZipCompressionModel extends CompressionModel {
         codeModel.save(out);
     }
     
+    protected boolean savesCompactCodeModels() {
+        return codeModel != null && codeModel.isCanonical();
+    }
+    
     public void build(DocumentList documents) throws IOException {
         buildDictionaryIfUnspecified(documents);
+        // The packers used to build use the requested number of repeat offsets
+        codeModel = null;
+        packer = null;
         codeModel = ((ModelBuilder)buildEncodingModel(documents)).createModel();
+        if (optimalParsing) {
+            // Retrain on the parse we will actually emit, priced by the greedy model.
+            codeModel = ((ModelBuilder)buildEncodingModel(documents, codeModel)).createModel();
+        }
+        packer = null;
+    }
+    
+    /**
+     * The packer uses as many repeat offsets as the code model has symbols
+     * for, or while building, as many as requested.
+     */
+    protected SubstringPacker createSubstringPacker() {
+        SubstringPacker packer = super.createSubstringPacker();
+        packer.setNumRepeatOffsets(codeModel != null ? codeModel.getNumRepeatOffsets() : numRepeatOffsets);
+        return packer;
     }
     
     protected SubstringPacker.Consumer createModelBuilder() {
         return new ModelBuilder();
     }
     
+    /**
+     * The compiled form of the model as currently configured.  Any
+     * number of threads can share it, compressing and decompressing with
+     * their own Compressor and Decompressor, which is faster than going
+     * through the model as those keep their buffers from call to call.  The
+     * compiled model isn't affected by later changes to this model (other
+     * than to the contents of its dictionary array), so fetch it again after
+     * rebuilding or reconfiguring it.
+     */
+    public CompiledModel getCompiledModel() {
+        if (codeModel == null) {
+            throw new IllegalStateException("The model has not been built or loaded");
+        }
+        SubstringPacker packer = getSubstringPacker();
+        CompiledModel compiled = this.compiled;
+        if (compiled == null || !compiled.isCompiledFrom(packer, codeModel, optimalParsing)) {
+            this.compiled = compiled = new CompiledModel(getDictionary(), packer, codeModel, optimalParsing);
+        }
+        return compiled;
+    }
+    
     public void compress(byte[] data, OutputStream out) throws IOException {
-        getSubstringPacker().pack(data, this, new HuffmanEncoder(codeModel.createModel(), out));
+        new Compressor(getCompiledModel(), false).compress(data, out);
+    }
+    
+    public byte[] compress(byte[] data) {
+        return new Compressor(getCompiledModel(), false).compress(data);
     }
     
+    public int compress(byte[] data, byte[] dest, int destOffset) {
+        return new Compressor(getCompiledModel(), false).compress(data, dest, destOffset);
+    }
+    
+    /**
+     * The model compresses with a Compressor, which it passes as the context.
+     */
     public void encodeLiteral(int aByte, Object context) {
-        try {
-            HuffmanEncoder encoder = (HuffmanEncoder)context;
-            encoder.encodeSymbol(aByte);
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        ((Compressor)context).encodeLiteral(aByte, context);
     }
 
     public void encodeSubstring(int offset, int length, Object context) {
-        try {
-            HuffmanEncoder encoder = (HuffmanEncoder)context;
-            if (length < 1 || length > 255) {
-                throw new IllegalArgumentException("Length " + length + " out of range [1,255]");
-            }
-            encoder.encodeSymbol(256 + length);
-            
-            offset = -offset;
-            if (offset < 1 || offset > (2<<15)-1) {
-                throw new IllegalArgumentException("Offset " + offset + " out of range [1, 65535]");
-            }
-            encoder.encodeSymbol(offset & 0xf);
-            encoder.encodeSymbol((offset >> 4) & 0xf);
-            encoder.encodeSymbol((offset >> 8) & 0xf);
-            encoder.encodeSymbol((offset >> 12) & 0xf);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        ((Compressor)context).encodeSubstring(offset, length, context);
     }
     
     public void endEncoding(Object context) {
-        try {
-            HuffmanEncoder encoder = (HuffmanEncoder)context;
-            encoder.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        ((Compressor)context).endEncoding(context);
     }
     
+    /**
+     * Decompresses with a Decompressor (see getCompiledModel).
+     */
     public byte[] decompress(byte[] compressedBytes) {
-        try {
-            ByteArrayInputStream bytesIn = new ByteArrayInputStream(compressedBytes);
-            HuffmanDecoder decoder = new HuffmanDecoder(codeModel.createModel(), bytesIn);
-            SubstringUnpacker unpacker = new SubstringUnpacker(dictionary);
-        
-            int nextSymbol;
-            while ((nextSymbol = decoder.decodeSymbol()) != -1) {
-                if (nextSymbol > 255) {
-                    int length = nextSymbol - 256;
-                    int offset = decoder.decodeSymbol() | (decoder.decodeSymbol() << 4) | (decoder.decodeSymbol() << 8) | (decoder.decodeSymbol() << 12);
-                    offset = -offset;
-                    unpacker.encodeSubstring(offset, length, null);
-                }
-                else {
-                    unpacker.encodeLiteral(nextSymbol, null);
-                }
-            }
-            unpacker.endEncoding(null);
-            return unpacker.getUnpackedBytes();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        return getCompiledModel().createDecompressor().decompress(compressedBytes);
+    }
+    
+    /**
+     * Stops decoding as soon as maxOutputBytes have been produced.
+     */
+    public byte[] decompress(byte[] compressedBytes, int maxOutputBytes) {
+        if (maxOutputBytes < 0) {
+            throw new IllegalArgumentException("maxOutputBytes " + maxOutputBytes + " is negative");
         }
-    }    
+        return getCompiledModel().createDecompressor().decompress(compressedBytes, maxOutputBytes);
+    }
+    
+    public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+        return getCompiledModel().createDecompressor().decompress(src, srcOffset, srcLength, dest, destOffset);
+    }
     
+    public int decompress(ByteBuffer src, ByteBuffer dest) {
+        return getCompiledModel().createDecompressor().decompress(src, dest);
+    }
     
     private class ModelBuilder implements SubstringPacker.Consumer {
-        private int[] literalLengthHistogram = new int[256 + 256 + 1]; // 256 for each unique literal byte, 256 for all possible length, plus 1 for EOF
+        // 256 for each unique literal byte, 256 for all possible lengths, 256 lengths per repeat offset, plus 1 for EOF
+        private int[] literalLengthHistogram = new int[FemtoZipHuffmanModel.getLiteralLengthSymbolCount(numRepeatOffsets)];
         private int[] offsetHistogramNibble0 = new int[16];
         private int[] offsetHistogramNibble1 = new int[16];
         private int[] offsetHistogramNibble2 = new int[16];
         private int[] offsetHistogramNibble3 = new int[16];
+        private RecentOffsets recentOffsets = new RecentOffsets(numRepeatOffsets);
         
         public void encodeLiteral(int aByte, Object context) {
             literalLengthHistogram[aByte]++;
@@ -135,6 +223,7 @@ public class FemtoZipCompressionModel extends CompressionModel {
         
         public void endEncoding(Object context) {
             literalLengthHistogram[literalLengthHistogram.length - 1]++;
+            recentOffsets = new RecentOffsets(numRepeatOffsets);
         }
 
         public void encodeSubstring(int offset, int length, Object context) {
@@ -142,12 +231,19 @@ public class FemtoZipCompressionModel extends CompressionModel {
             if (length < 1 || length > 255) {
                 throw new IllegalArgumentException("Length " + length + " out of range [1,255]");
             }
-            literalLengthHistogram[256 + length]++;
             
             offset = -offset;
             if (length < 1 || offset > (2<<15)-1) {
                 throw new IllegalArgumentException("Length " + length + " out of range [1, 65535]");
             }
+            
+            int repeatIndex = recentOffsets.use(offset);
+            if (repeatIndex >= 0) {
+                literalLengthHistogram[FemtoZipHuffmanModel.getRepeatSymbol(repeatIndex, length)]++;
+                return;
+            }
+            
+            literalLengthHistogram[256 + length]++;
             offsetHistogramNibble0[offset & 0xf]++;
             offsetHistogramNibble1[(offset >> 4) & 0xf]++;
             offsetHistogramNibble2[(offset >> 8) & 0xf]++;
@@ -156,11 +252,11 @@ public class FemtoZipCompressionModel extends CompressionModel {
 
         public FemtoZipHuffmanModel createModel() {
             return new FemtoZipHuffmanModel(
-                    new FrequencyHuffmanModel(literalLengthHistogram, false),
-                    new FrequencyHuffmanModel(offsetHistogramNibble0, false),
-                    new FrequencyHuffmanModel(offsetHistogramNibble1, false),
-                    new FrequencyHuffmanModel(offsetHistogramNibble2, false),
-                    new FrequencyHuffmanModel(offsetHistogramNibble3, false));
+                    new FrequencyHuffmanModel(literalLengthHistogram, false, maxCodeLength),
+                    new FrequencyHuffmanModel(offsetHistogramNibble0, false, maxCodeLength),
+                    new FrequencyHuffmanModel(offsetHistogramNibble1, false, maxCodeLength),
+                    new FrequencyHuffmanModel(offsetHistogramNibble2, false, maxCodeLength),
+                    new FrequencyHuffmanModel(offsetHistogramNibble3, false, maxCodeLength));
         }
     }
 }
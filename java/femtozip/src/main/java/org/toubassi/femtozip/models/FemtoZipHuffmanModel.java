@@ -22,8 +22,22 @@ import java.io.IOException;
 import org.toubassi.femtozip.coding.huffman.Codeword;
 import org.toubassi.femtozip.coding.huffman.FrequencyHuffmanModel;
 import org.toubassi.femtozip.coding.huffman.HuffmanModel;
+import org.toubassi.femtozip.coding.huffman.PackedHuffmanCode;
+import org.toubassi.femtozip.substring.SubstringPacker;
 
-public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
+/**
+ * Codes the output of FemtoZipCompressionModel with one model for literals and
+ * lengths, and one for each nibble of an offset.  The literal/length model's
+ * symbols are 256 literals, 256 lengths each followed by an explicit offset,
+ * then 256 lengths for each of the model's repeat offsets (which are followed
+ * by nothing), then EOF.  So the number of repeat offsets is implied by the
+ * size of the literal/length model, and models saved without them (which have
+ * 513 symbols) load as before.
+ */
+public class FemtoZipHuffmanModel implements HuffmanModel, SubstringPacker.CostModel, Cloneable {
+
+    // Price of a symbol the model has no codeword for, so a parse avoids it.
+    private static final int UnencodableCost = 1 << 16;
 
     private enum State {
         LiteralLengthState, OffsetNibble0State, OffsetNibble1State, OffsetNibble2State, OffsetNibble3State;
@@ -35,6 +49,14 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
     private FrequencyHuffmanModel offsetNibble2Model;
     private FrequencyHuffmanModel offsetNibble3Model;
     private State state = State.LiteralLengthState;
+    private int eofSymbol;
+    private int[] literalLengthCosts;
+    private int[] offsetNibble0Costs;
+    private int[] offsetNibble1Costs;
+    private int[] offsetNibble2Costs;
+    private int[] offsetNibble3Costs;
+    private PackedHuffmanCode literalLengthCode;
+    private PackedHuffmanCode[] offsetNibbleCodes;
 
     public FemtoZipHuffmanModel(FrequencyHuffmanModel literalLengthModel,
             FrequencyHuffmanModel offsetNibble0Model,
@@ -47,6 +69,7 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
         this.offsetNibble1Model = offsetNibble1Model;
         this.offsetNibble2Model = offsetNibble2Model;
         this.offsetNibble3Model = offsetNibble3Model;
+        computeTables();
     }
     
     public FemtoZipHuffmanModel(DataInputStream in) throws IOException {
@@ -55,12 +78,96 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
         offsetNibble1Model = new FrequencyHuffmanModel(in);
         offsetNibble2Model = new FrequencyHuffmanModel(in);
         offsetNibble3Model = new FrequencyHuffmanModel(in);
+        computeTables();
+    }
+    
+    private void computeTables() {
+        literalLengthCode = literalLengthModel.pack();
+        offsetNibbleCodes = new PackedHuffmanCode[] {offsetNibble0Model.pack(), offsetNibble1Model.pack(),
+                offsetNibble2Model.pack(), offsetNibble3Model.pack()};
+        eofSymbol = literalLengthModel.getCodewordForEOF().getSymbol();
+        literalLengthCosts = codeLengths(literalLengthModel, 256 + 256);
+        offsetNibble0Costs = codeLengths(offsetNibble0Model, 16);
+        offsetNibble1Costs = codeLengths(offsetNibble1Model, 16);
+        offsetNibble2Costs = codeLengths(offsetNibble2Model, 16);
+        offsetNibble3Costs = codeLengths(offsetNibble3Model, 16);
+    }
+    
+    private static int[] codeLengths(FrequencyHuffmanModel model, int numSymbols) {
+        int[] lengths = new int[numSymbols];
+        for (int i = 0; i < numSymbols; i++) {
+            Codeword codeword = model.encode(i);
+            lengths[i] = codeword == null ? UnencodableCost : codeword.getBitLength();
+        }
+        return lengths;
+    }
+    
+    /**
+     * The literal/length code packed for encoding and decoding without the
+     * state machine of the HuffmanModel methods.
+     */
+    public PackedHuffmanCode getLiteralLengthCode() {
+        return literalLengthCode;
+    }
+    
+    /**
+     * The packed code for the given nibble (0 is the least significant) of
+     * an explicit offset.
+     */
+    public PackedHuffmanCode getOffsetNibbleCode(int nibble) {
+        return offsetNibbleCodes[nibble];
+    }
+    
+    public int getEOFSymbol() {
+        return eofSymbol;
+    }
+    
+    public int literalCost(int aByte) {
+        return literalLengthCosts[aByte];
+    }
+    
+    public static int getLiteralLengthSymbolCount(int numRepeatOffsets) {
+        return 256 + 256 + 256 * numRepeatOffsets + 1;
+    }
+    
+    public int getNumRepeatOffsets() {
+        return (eofSymbol - 512) >> 8;
+    }
+    
+    /**
+     * The symbol for a substring of the given length at the repeat offset
+     * with the given index (see FemtoZipCompressionModel.setNumRepeatOffsets).
+     */
+    public static int getRepeatSymbol(int repeatIndex, int length) {
+        return 512 + (repeatIndex << 8) + length;
+    }
+    
+    /**
+     * True if symbol from the literal/length model is a length which is
+     * followed by offset nibbles (as opposed to a literal, a repeat or EOF).
+     */
+    private boolean isExplicitLength(int symbol) {
+        return symbol > 255 && (symbol < 512 || symbol == eofSymbol);
+    }
+    
+    public int substringCost(int offset, int length) {
+        offset = -offset;
+        return literalLengthCosts[256 + length] + offsetNibble0Costs[offset & 0xf] + offsetNibble1Costs[(offset >> 4) & 0xf] +
+                offsetNibble2Costs[(offset >> 8) & 0xf] + offsetNibble3Costs[(offset >> 12) & 0xf];
     }
     
     public FemtoZipHuffmanModel createModel() {
         return clone();
     }
     
+    /**
+     * True if every code is canonical, so is saved as just its code lengths.
+     */
+    public boolean isCanonical() {
+        return literalLengthModel.isCanonical() && offsetNibble0Model.isCanonical() && offsetNibble1Model.isCanonical() &&
+                offsetNibble2Model.isCanonical() && offsetNibble3Model.isCanonical();
+    }
+    
     public void save(DataOutputStream out) throws IOException {
         literalLengthModel.save(out);
         offsetNibble0Model.save(out);
@@ -76,7 +183,8 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
     public Codeword encode(int symbol) {
         switch (state) {
         case LiteralLengthState:
-            if (symbol > 255) {
+            // EOF moves to the nibble state too, which is what isEOF relies on
+            if (isExplicitLength(symbol)) {
                 state = State.OffsetNibble0State;
             }
             return literalLengthModel.encode(symbol);
@@ -101,7 +209,7 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
         switch (state) {
         case LiteralLengthState:
             Codeword codeword = literalLengthModel.decode(bits);
-            if (codeword.getSymbol() > 255) {
+            if (isExplicitLength(codeword.getSymbol())) {
                 state = State.OffsetNibble0State;
             }
             return codeword;
@@ -128,16 +236,12 @@ public class FemtoZipHuffmanModel implements HuffmanModel, Cloneable {
     
     @Override
     protected FemtoZipHuffmanModel clone() {
-        FemtoZipHuffmanModel clonedModel = new FemtoZipHuffmanModel(
-            this.literalLengthModel,
-            this.offsetNibble0Model,
-            this.offsetNibble1Model,
-            this.offsetNibble2Model,
-            this.offsetNibble3Model
-        );
-
-        clonedModel.state = this.state;
-
-        return clonedModel;
+        try {
+            // A shallow copy shares the (immutable) models and cost tables.
+            return (FemtoZipHuffmanModel)super.clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
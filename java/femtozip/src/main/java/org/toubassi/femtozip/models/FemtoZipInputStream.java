@@ -0,0 +1,168 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.toubassi.femtozip.coding.huffman.HuffmanDecoder;
+import org.toubassi.femtozip.coding.huffman.PackedHuffmanCode;
+import org.toubassi.femtozip.substring.RecentOffsets;
+
+/**
+ * Decompresses a document compressed with a FemtoZipCompressionModel (by
+ * compress or a FemtoZipOutputStream) as it is read, so it never has to be
+ * held in memory in full.  Only the last 64k of output (the format's maximum
+ * offset) is kept for resolving matches, plus a buffer's worth of decoded
+ * bytes waiting to be read.
+ */
+public class FemtoZipInputStream extends InputStream {
+    
+    private static final int History = (2 << 15) - 1;
+    private static final int BufferSize = 64 * 1024;
+    private static final int MaxMatchLength = 255;
+    
+    private HuffmanDecoder decoder;
+    private PackedHuffmanCode literalLengthCode;
+    private PackedHuffmanCode offsetNibble0Code;
+    private PackedHuffmanCode offsetNibble1Code;
+    private PackedHuffmanCode offsetNibble2Code;
+    private PackedHuffmanCode offsetNibble3Code;
+    private int eofSymbol;
+    private RecentOffsets recentOffsets;
+    private byte[] dictionary;
+    private InputStream in;
+    
+    private byte[] window = new byte[History + BufferSize + MaxMatchLength];
+    private int position;
+    private int length;
+    private boolean slid;
+    private boolean endOfStream;
+    
+    public FemtoZipInputStream(FemtoZipCompressionModel model, InputStream in) {
+        CompiledModel compiled = model.getCompiledModel();
+        FemtoZipHuffmanModel codeModel = compiled.getCodeModel();
+        literalLengthCode = codeModel.getLiteralLengthCode();
+        offsetNibble0Code = codeModel.getOffsetNibbleCode(0);
+        offsetNibble1Code = codeModel.getOffsetNibbleCode(1);
+        offsetNibble2Code = codeModel.getOffsetNibbleCode(2);
+        offsetNibble3Code = codeModel.getOffsetNibbleCode(3);
+        eofSymbol = codeModel.getEOFSymbol();
+        recentOffsets = new RecentOffsets(compiled.getNumRepeatOffsets());
+        dictionary = compiled.getDictionary();
+        decoder = new HuffmanDecoder(null, in);
+        this.in = in;
+    }
+    
+    public int read() throws IOException {
+        if (position == length && !fill()) {
+            return -1;
+        }
+        return window[position++] & 0xff;
+    }
+    
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == length && !fill()) {
+            return -1;
+        }
+        int count = Math.min(len, length - position);
+        System.arraycopy(window, position, b, off, count);
+        position += count;
+        return count;
+    }
+    
+    public int available() {
+        return length - position;
+    }
+    
+    public void close() throws IOException {
+        endOfStream = true;
+        in.close();
+    }
+    
+    /**
+     * Decodes the next buffer's worth of the document, returning false at
+     * its end.
+     */
+    private boolean fill() throws IOException {
+        if (endOfStream) {
+            return false;
+        }
+        if (length > History) {
+            // Everything has been read, so we only need to keep the history
+            System.arraycopy(window, length - History, window, 0, History);
+            position = length = History;
+            slid = true;
+        }
+        
+        byte[] window = this.window;
+        int length = this.length;
+        int end = window.length - MaxMatchLength;
+        int nextSymbol = 0;
+        while (length < end && (nextSymbol = decoder.decodeSymbol(literalLengthCode)) != eofSymbol) {
+            if (nextSymbol < 256) {
+                window[length++] = (byte)nextSymbol;
+                continue;
+            }
+            
+            int offset;
+            int matchLength = nextSymbol & 0xff;
+            if (nextSymbol > 511) {
+                int repeatIndex = (nextSymbol - 512) >> 8;
+                offset = repeatIndex < recentOffsets.size() ? recentOffsets.get(repeatIndex) : 0;
+                if (offset == 0) {
+                    throw new IOException("Corrupt compressed data, repeat offset " + repeatIndex + " not set");
+                }
+            }
+            else {
+                offset = decoder.decodeSymbol(offsetNibble0Code) | (decoder.decodeSymbol(offsetNibble1Code) << 4) |
+                        (decoder.decodeSymbol(offsetNibble2Code) << 8) | (decoder.decodeSymbol(offsetNibble3Code) << 12);
+            }
+            recentOffsets.use(offset);
+            
+            int from = length - offset;
+            if (from < 0) {
+                // Only the start of the document can refer back into the dictionary
+                if (slid || -from > dictionary.length) {
+                    throw new IOException("Corrupt compressed data, offset " + offset + " out of range");
+                }
+                int fromDictionary = Math.min(matchLength, -from);
+                System.arraycopy(dictionary, dictionary.length + from, window, length, fromDictionary);
+                length += fromDictionary;
+                matchLength -= fromDictionary;
+                from = 0;
+            }
+            if (length - from >= matchLength) {
+                System.arraycopy(window, from, window, length, matchLength);
+                length += matchLength;
+            }
+            else {
+                // Overlaps what it is copying, so repeats it
+                for (int matchEnd = length + matchLength; length < matchEnd; ) {
+                    window[length++] = window[from++];
+                }
+            }
+        }
+        if (nextSymbol == eofSymbol) {
+            endOfStream = true;
+        }
+        this.length = length;
+        return position < length;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.toubassi.femtozip.substring.SubstringPacker;
+
+/**
+ * Compresses a document written to it a piece at a time, so it never has to
+ * be held in memory in full.  The output is a single document in the same
+ * format as FemtoZipCompressionModel.compress (so can be decompressed with
+ * decompress or a FemtoZipInputStream), but as each piece is packed on its
+ * own, against a window of the 64k bytes before it (the format's maximum
+ * offset), it may be a little bigger than compressing the whole document
+ * at once.  The output is complete once the stream is closed.
+ */
+public class FemtoZipOutputStream extends OutputStream implements SubstringPacker.Consumer {
+    
+    public static final int DefaultPieceSize = 64 * 1024;
+    
+    private static final int MaxOffset = (2 << 15) - 1;
+    
+    private Compressor compressor;
+    private OutputStream out;
+    private byte[] dictionary;
+    private byte[] piece;
+    private int pieceLength;
+    private byte[] window;
+    private boolean closed;
+    
+    public FemtoZipOutputStream(FemtoZipCompressionModel model, OutputStream out) {
+        this(model, out, DefaultPieceSize);
+    }
+    
+    public FemtoZipOutputStream(FemtoZipCompressionModel model, OutputStream out, int pieceSize) {
+        if (pieceSize < 1) {
+            throw new IllegalArgumentException("Piece size " + pieceSize + " must be positive");
+        }
+        CompiledModel compiled = model.getCompiledModel();
+        compressor = compiled.createCompressor();
+        compressor.begin(out);
+        dictionary = compiled.getDictionary();
+        this.out = out;
+        piece = new byte[pieceSize];
+    }
+    
+    public void write(int b) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (pieceLength == piece.length) {
+            packPiece();
+        }
+        piece[pieceLength++] = (byte)b;
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            if (pieceLength == piece.length) {
+                packPiece();
+            }
+            int count = Math.min(len, piece.length - pieceLength);
+            System.arraycopy(b, off, piece, pieceLength, count);
+            pieceLength += count;
+            off += count;
+            len -= count;
+        }
+    }
+    
+    private void packPiece() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        byte[] bytes = pieceLength == piece.length ? piece : Arrays.copyOf(piece, pieceLength);
+        try {
+            compressor.pack(bytes, this, window);
+        }
+        catch (RuntimeException e) {
+            // The Compressor wraps the stream's IOExceptions
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw e;
+        }
+        
+        // The next piece's window is the end of this one's window followed by this piece
+        byte[] previous = window != null ? window : dictionary;
+        int fromPrevious = Math.min(previous.length, MaxOffset - Math.min(MaxOffset, pieceLength));
+        byte[] next = new byte[fromPrevious + Math.min(MaxOffset, pieceLength)];
+        if (fromPrevious > 0) {
+            System.arraycopy(previous, previous.length - fromPrevious, next, 0, fromPrevious);
+        }
+        System.arraycopy(bytes, pieceLength - (next.length - fromPrevious), next, fromPrevious, next.length - fromPrevious);
+        window = next;
+        pieceLength = 0;
+    }
+    
+    /**
+     * Flushes the underlying stream.  Codes are only written to it a buffer
+     * at a time though, and the last ones when the stream is closed, as the
+     * bit stream can't be padded in the middle of a document.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+    
+    /**
+     * Compresses what remains and ends the document, closing the underlying
+     * stream.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (pieceLength > 0) {
+            packPiece();
+        }
+        closed = true;
+        try {
+            compressor.endEncoding(null);
+        }
+        catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    public void encodeLiteral(int aByte, Object context) {
+        compressor.encodeLiteral(aByte, context);
+    }
+    
+    public void encodeSubstring(int offset, int length, Object context) {
+        compressor.encodeSubstring(offset, length, context);
+    }
+    
+    public void endEncoding(Object context) {
+        // Only the end of the stream ends the document, see close
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import org.toubassi.femtozip.CompressionModel;
+import org.toubassi.femtozip.DocumentList;
+import org.toubassi.femtozip.util.StreamUtil;
+
+/**
+ * Wraps another model to prefix its output with a header, so decompression
+ * can allocate the output once at its exact size, and data compressed with
+ * a different model is detected rather than decoded into garbage.
+ * 
+ * The header is a flags byte, the uncompressed length as a variable length
+ * int, a 4 byte fingerprint of the wrapped model (a CRC32 of its saved form),
+ * and if checksums are enabled, a 4 byte CRC32 of the uncompressed data.
+ * That costs 6 to 14 bytes per document over the wrapped model.
+ */
+public class FramedCompressionModel extends CompressionModel {
+    
+    private static final int ChecksumFlag = 1;
+    
+    // No model produces more than this many bytes per compressed byte: at
+    // best each bit of it decodes to a 258 byte match (deflate's longest).
+    private static final int MaxExpansion = 8 * 258;
+    
+    private CompressionModel model;
+    private boolean checksum;
+    private volatile Integer fingerprint;
+    
+    public FramedCompressionModel() {
+        this(new FemtoZipCompressionModel());
+    }
+    
+    public FramedCompressionModel(CompressionModel model) {
+        this.model = model;
+    }
+    
+    public CompressionModel getModel() {
+        return model;
+    }
+    
+    /**
+     * Sets whether compressed documents carry a CRC32 of their data, which
+     * decompress verifies.  Documents record whether they have one, so this
+     * only affects compression.
+     */
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+    
+    public boolean getChecksum() {
+        return checksum;
+    }
+    
+    public void setDictionary(byte[] dictionary) {
+        model.setDictionary(dictionary);
+        fingerprint = null;
+    }
+    
+    public byte[] getDictionary() {
+        return model.getDictionary();
+    }
+    
+    public void setMaxDictionaryLength(int length) {
+        super.setMaxDictionaryLength(length);
+        model.setMaxDictionaryLength(length);
+    }
+    
+    public void setDictionaryMemoryBudget(long bytes) {
+        super.setDictionaryMemoryBudget(bytes);
+        model.setDictionaryMemoryBudget(bytes);
+    }
+    
+    public double getDictionaryCoverage() {
+        return model.getDictionaryCoverage();
+    }
+    
+    public void setCompressionLevel(int level) {
+        super.setCompressionLevel(level);
+        model.setCompressionLevel(level);
+    }
+    
+    public void setHashBits(int hashBits) {
+        super.setHashBits(hashBits);
+        model.setHashBits(hashBits);
+        fingerprint = null;
+    }
+    
+    public void setPersistDictionaryHash(boolean persist) {
+        super.setPersistDictionaryHash(persist);
+        model.setPersistDictionaryHash(persist);
+        fingerprint = null;
+    }
+    
+    /**
+     * A CRC32 of the wrapped model's saved form, which identifies the model
+     * the data was compressed with.
+     */
+    public int getFingerprint() {
+        Integer fingerprint = this.fingerprint;
+        if (fingerprint == null) {
+            try {
+                ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytesOut);
+                out.writeUTF(model.getClass().getName());
+                model.save(out);
+                out.close();
+                CRC32 crc = new CRC32();
+                crc.update(bytesOut.toByteArray());
+                fingerprint = this.fingerprint = (int)crc.getValue();
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return fingerprint;
+    }
+    
+    public void load(DataInputStream in) throws IOException {
+        checksum = in.readBoolean();
+        model = instantiateCompressionModel(in.readUTF());
+        model.load(in);
+        // Report the settings the wrapped model loaded with
+        super.setCompressionLevel(model.getCompressionLevel());
+        super.setHashBits(model.getHashBits());
+        super.setPersistDictionaryHash(model.getPersistDictionaryHash());
+        fingerprint = null;
+    }
+    
+    public void save(DataOutputStream out) throws IOException {
+        out.writeBoolean(checksum);
+        out.writeUTF(model.getClass().getName());
+        model.save(out);
+    }
+    
+    public void build(DocumentList documents) throws IOException {
+        model.build(documents);
+        fingerprint = null;
+    }
+    
+    public void encodeLiteral(int aByte, Object context) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void encodeSubstring(int offset, int length, Object context) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void endEncoding(Object context) {
+        throw new UnsupportedOperationException();
+    }
+    
+    public void compress(byte[] data, OutputStream out) throws IOException {
+        out.write(checksum ? ChecksumFlag : 0);
+        StreamUtil.writeVarInt(out, data.length);
+        writeInt(out, getFingerprint());
+        if (checksum) {
+            writeInt(out, checksum(data, 0, data.length));
+        }
+        model.compress(data, out);
+    }
+    
+    /**
+     * Returns the uncompressed length recorded in the header of a document
+     * compressed by a FramedCompressionModel, without decompressing it.
+     */
+    public static int getUncompressedLength(byte[] src, int srcOffset, int srcLength) {
+        try {
+            return new Header(src, srcOffset, srcLength).length;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public byte[] decompress(byte[] compressedData) {
+        try {
+            Header header = readHeader(compressedData, 0, compressedData.length);
+            byte[] data = new byte[header.length];
+            decompress(header, compressedData, 0, compressedData.length, data, 0);
+            return data;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) {
+        try {
+            Header header = readHeader(src, srcOffset, srcLength);
+            if (header.length > dest.length - destOffset) {
+                return -header.length;
+            }
+            return decompress(header, src, srcOffset, srcLength, dest, destOffset);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * Reads the header, checking it is from this model before anything is
+     * allocated based on it.
+     */
+    private Header readHeader(byte[] src, int srcOffset, int srcLength) throws IOException {
+        Header header = new Header(src, srcOffset, srcLength);
+        if (header.fingerprint != getFingerprint()) {
+            throw new IOException("Data was compressed with a different model (fingerprint " +
+                    Integer.toHexString(header.fingerprint) + ", expected " + Integer.toHexString(getFingerprint()) + ")");
+        }
+        return header;
+    }
+    
+    private int decompress(Header header, byte[] src, int srcOffset, int srcLength, byte[] dest, int destOffset) throws IOException {
+        int length = model.decompress(src, srcOffset + header.headerLength, srcLength - header.headerLength, dest, destOffset);
+        if (length != header.length) {
+            throw new IOException("Corrupt data, expected " + header.length + " bytes but got " + length);
+        }
+        if (header.hasChecksum && checksum(dest, destOffset, length) != header.checksum) {
+            throw new IOException("Corrupt data, checksum mismatch");
+        }
+        return length;
+    }
+    
+    private static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int)crc.getValue();
+    }
+    
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+    
+    private static class Header {
+        boolean hasChecksum;
+        int length;
+        int fingerprint;
+        int checksum;
+        int headerLength;
+        
+        Header(byte[] src, int srcOffset, int srcLength) throws IOException {
+            ByteArrayInputStream bytesIn = new ByteArrayInputStream(src, srcOffset, srcLength);
+            DataInputStream in = new DataInputStream(bytesIn);
+            int flags = in.readUnsignedByte();
+            if ((flags & ~ChecksumFlag) != 0) {
+                throw new IOException("Unsupported frame flags " + Integer.toHexString(flags));
+            }
+            hasChecksum = (flags & ChecksumFlag) != 0;
+            length = StreamUtil.readVarInt(in);
+            if (length < 0) {
+                throw new IOException("Corrupt frame header, length " + length);
+            }
+            fingerprint = in.readInt();
+            if (hasChecksum) {
+                checksum = in.readInt();
+            }
+            headerLength = srcLength - bytesIn.available();
+            if (length > (long)(srcLength - headerLength) * MaxExpansion) {
+                throw new IOException("Corrupt frame header, length " + length + " from " + (srcLength - headerLength) + " bytes");
+            }
+        }
+    }
+}
@@ -84,13 +84,20 @@ public class GZipDictionaryCompressionModel extends CompressionModel {
     }
     
     public byte[] decompress(byte[] compressedData) {
+        return decompress(compressedData, Integer.MAX_VALUE);
+    }
+    
+    public byte[] decompress(byte[] compressedData, int maxOutputBytes) {
+        if (maxOutputBytes < 0) {
+            throw new IllegalArgumentException("maxOutputBytes " + maxOutputBytes + " is negative");
+        }
         try {
             Inflater decompresser = new Inflater();
             decompresser.setInput(compressedData, 0, compressedData.length);
             byte[] result = new byte[1024];
             ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(2 * compressedData.length);
-            while (!decompresser.finished()) {
-                int resultLength = decompresser.inflate(result);
+            while (!decompresser.finished() && bytesOut.size() < maxOutputBytes) {
+                int resultLength = decompresser.inflate(result, 0, Math.min(result.length, maxOutputBytes - bytesOut.size()));
                 if (resultLength == 0 && decompresser.needsDictionary()) {
                     decompresser.setDictionary(gzipSizedDictionary);
                 }
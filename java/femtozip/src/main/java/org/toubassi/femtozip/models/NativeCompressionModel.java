@@ -77,7 +77,7 @@ public class NativeCompressionModel extends CompressionModel {
         int length = compress(data, buf);
         
         if (length < 0) {
-            buf = new byte[length];
+            buf = new byte[-length];
             length = compress(data, buf);
             if (length < 0) {
                 throw new IllegalStateException();
@@ -93,7 +93,7 @@ public class NativeCompressionModel extends CompressionModel {
         int length = decompress(compressedData, buf);
         
         if (length < 0) {
-            buf = new byte[length];
+            buf = new byte[-length];
             length = decompress(compressedData, buf);
             if (length < 0) {
                 throw new IllegalStateException();
@@ -114,8 +114,16 @@ public class NativeCompressionModel extends CompressionModel {
     
     public native void build(DocumentList documents) throws IOException;
 
+    /**
+     * Returns the compressed length, or -(required length) if output is too
+     * small, as fz_compress does.
+     */
     public native int compress(byte[] data, byte[] output);
     
+    /**
+     * Returns the decompressed length, or -(required length) if
+     * decompressedData is too small, as fz_decompress does.
+     */
     public native int decompress(byte[] compressedData, byte[] decompressedData);
 
     @Override
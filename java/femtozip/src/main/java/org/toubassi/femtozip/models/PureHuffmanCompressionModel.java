@@ -15,7 +15,6 @@
  */
 package org.toubassi.femtozip.models;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -37,7 +36,8 @@ public class PureHuffmanCompressionModel extends CompressionModel {
     }
 
     public void save(DataOutputStream out) throws IOException {
-        codeModel.save(out);
+        // The model has no format version, so it is saved as older versions can read it
+        codeModel.save(out, false);
     }
     
     public void build(DocumentList documents) {
@@ -81,13 +81,19 @@ public class PureHuffmanCompressionModel extends CompressionModel {
     }
     
     public byte[] decompress(byte[] compressedData) {
+        return decompress(compressedData, Integer.MAX_VALUE);
+    }
+    
+    public byte[] decompress(byte[] compressedData, int maxOutputBytes) {
+        if (maxOutputBytes < 0) {
+            throw new IllegalArgumentException("maxOutputBytes " + maxOutputBytes + " is negative");
+        }
         try {
-            ByteArrayInputStream bytesIn = new ByteArrayInputStream(compressedData);
-            HuffmanDecoder decoder = new HuffmanDecoder(codeModel, bytesIn);
-            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(compressedData.length * 2);
+            HuffmanDecoder decoder = new HuffmanDecoder(codeModel, compressedData);
+            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream((int)Math.min(maxOutputBytes, compressedData.length * 2L));
             
             int nextSymbol;
-            while ((nextSymbol = decoder.decodeSymbol()) != -1) {
+            while (bytesOut.size() < maxOutputBytes && (nextSymbol = decoder.decodeSymbol()) != -1) {
                 bytesOut.write((byte)nextSymbol);
             }
             return bytesOut.toByteArray();
@@ -23,4 +23,20 @@ public class Match {
         this.bestMatchIndex = bestMatchIndex;
         this.bestMatchLength = bestMatchLength;
     }
+    
+    /**
+     * Matches are found for every byte compressed, so the hot paths pass them
+     * around packed in a long rather than allocating a Match for each one.
+     */
+    public static long pack(int index, int length) {
+        return ((long)index << 32) | (length & 0xffffffffL);
+    }
+    
+    public static int index(long match) {
+        return (int)(match >>> 32);
+    }
+    
+    public static int length(long match) {
+        return (int)match;
+    }
 }
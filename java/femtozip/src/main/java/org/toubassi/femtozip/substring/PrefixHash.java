@@ -15,22 +15,78 @@
  */
 package org.toubassi.femtozip.substring;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 
+import org.toubassi.femtozip.util.FileDataInputStream;
+
 public class PrefixHash {
     
     public static final int PrefixLength = 4;
     
-    final private byte[] buffer;
-    final int[] hash;
-    final int[] heap;
+    // A table of 2^24 entries is 64MB, past which clearing it costs more than
+    // fewer collisions save
+    public static final int MaxHashBits = 24;
+    
+    private static final int MinTableBits = 4;
+    
+    private byte[] buffer;
+    private ByteBuffer bufferWords;
+    private final int hashBits;
+    private int tableBits;
+    private int hashCapacity;
+    int[] hash;
+    int[] heap;
+    final int iterationLimit;
+    
+    // A hash memory mapped from a model file is read only, and its tables
+    // live in the mapped region of the file rather than in hash and heap.
+    private IntBuffer loadedHash;
+    private IntBuffer loadedHeap;
+    
+    // Entries in hash and heap are stored as generation + index.  Anything
+    // below the current generation was put while hashing a previous buffer and
+    // is treated as empty, which lets reset reuse the tables without refilling them.
+    int generation;
     
     public PrefixHash(byte[] buf, boolean addToHash) {
+        this(buf, addToHash, 9);
+    }
+    
+    /**
+     * compressionLevel is in range [0..9] where 0 means faster, and 9 means
+     * better/smaller.  Lower levels bound how many candidates getBestMatch
+     * will examine along a hash chain, which keeps the cost per byte predictable
+     * for highly repetitive input.
+     */
+    public PrefixHash(byte[] buf, boolean addToHash, int compressionLevel) {
+        this(buf, addToHash, compressionLevel, 0);
+    }
+    
+    /**
+     * hashBits selects how prefixes are hashed.  0 means the original scheme,
+     * a 23 bit prefix modulo a table sized to the buffer.  Otherwise the whole
+     * 4 byte prefix is hashed multiplicatively into a table of 2^hashBits
+     * entries, which needs no division and keeps the entropy of the 4th byte
+     * (which matters for binary data).  If addToHash is false (as for the
+     * per document hashes), the table is instead sized to the buffer like the
+     * original scheme's, up to 2^hashBits entries, so a small document
+     * doesn't pay to clear a large table.
+     */
+    public PrefixHash(byte[] buf, boolean addToHash, int compressionLevel, int hashBits) {
+        if (hashBits < 0 || hashBits > MaxHashBits) {
+            throw new IllegalArgumentException("Hash bits " + hashBits + " out of range [0, " + MaxHashBits + "]");
+        }
+        iterationLimit = compressionLevel >= 9 ? 0 : (4 << Math.max(0, compressionLevel));
+        this.hashBits = hashBits;
         buffer = buf;
-        hash = new int[(int)(1.75 * buf.length)];
-        Arrays.fill(hash, -1);
-        heap = new int[buf.length];
-        Arrays.fill(heap, -1);
+        bufferWords = wordView(buf);
+        allocate(buf.length, addToHash);
         if (addToHash) {
             for (int i = 0, count = buf.length - PrefixLength; i < count; i++) {
                 put(i);
@@ -38,26 +94,127 @@ public class PrefixHash {
         }
     }
     
+    /**
+     * Shares the tables of an existing hash (e.g. one created by load),
+     * with a different compression level.
+     */
+    public PrefixHash(PrefixHash other, int compressionLevel) {
+        this(other.buffer, other.hashBits, other.hashCapacity, other.hash, other.heap, other.loadedHash, other.loadedHeap, compressionLevel);
+        generation = other.generation;
+    }
+    
+    private PrefixHash(byte[] buf, int hashBits, int hashCapacity, int[] hash, int[] heap, IntBuffer loadedHash, IntBuffer loadedHeap, int compressionLevel) {
+        iterationLimit = compressionLevel >= 9 ? 0 : (4 << Math.max(0, compressionLevel));
+        this.hashBits = hashBits;
+        buffer = buf;
+        bufferWords = wordView(buf);
+        this.hashCapacity = hashCapacity;
+        tableBits = hashBits != 0 ? Integer.numberOfTrailingZeros(hashCapacity) : 0;
+        this.hash = hash;
+        this.heap = heap;
+        this.loadedHash = loadedHash;
+        this.loadedHeap = loadedHeap;
+    }
+    
+    private void allocate(int length, boolean fullTable) {
+        if (hashBits != 0) {
+            int lengthBits = 32 - Integer.numberOfLeadingZeros(Math.max(1 << MinTableBits, (int)(1.75 * length)) - 1);
+            tableBits = fullTable ? hashBits : Math.min(hashBits, lengthBits);
+            hashCapacity = 1 << tableBits;
+        }
+        else {
+            hashCapacity = (int)(1.75 * length);
+        }
+        hash = new int[hashCapacity];
+        Arrays.fill(hash, -1);
+        heap = new int[length];
+        Arrays.fill(heap, -1);
+        generation = 0;
+    }
+    
+    /**
+     * Empties the hash and points it at a new buffer.  The existing tables are
+     * reused if they are big enough for buf, so a PrefixHash that is kept around
+     * (e.g. one per thread) stops allocating once it has seen its largest buffer.
+     */
+    public void reset(byte[] buf) {
+        if (loadedHash != null) {
+            throw new UnsupportedOperationException("A memory mapped PrefixHash is read only");
+        }
+        if (buf.length > heap.length) {
+            allocate(buf.length, false);
+        }
+        else if ((long)generation + buffer.length + buf.length > Integer.MAX_VALUE) {
+            Arrays.fill(hash, -1);
+            Arrays.fill(heap, -1);
+            generation = 0;
+        }
+        else {
+            generation += buffer.length;
+        }
+        if (buf != buffer) {
+            buffer = buf;
+            bufferWords = wordView(buf);
+        }
+    }
+    
+    /**
+     * A little endian view of buf, used to compare 8 bytes at a time when
+     * extending matches.  Pass it to bestMatch when the target is not this
+     * hash's own buffer to avoid creating one per call.
+     */
+    public static ByteBuffer wordView(byte[] buf) {
+        return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    public ByteBuffer getWordView() {
+        return bufferWords;
+    }
+    
+    public int getHashBits() {
+        return hashBits;
+    }
+    
     private int hashIndex(byte[] buf, int i) {
         int code = (buf[i] & 0xff) | ((buf[i + 1] & 0xff) << 8) | ((buf[i + 2] & 0xff) << 16) | ((buf[i + 3] & 0xff) << 24);
-        return (code & 0x7fffff) % hash.length;
+        if (hashBits != 0) {
+            // Fibonacci hashing, i.e. multiply by 2^32 / phi and keep the top bits
+            return (code * 0x9e3779b1) >>> (32 - tableBits);
+        }
+        return (code & 0x7fffff) % hashCapacity;
     }
 
     
     public void put(int index) {
         int hashIndex = hashIndex(buffer, index);
         heap[index] = hash[hashIndex];
-        hash[hashIndex] = index;
+        hash[hashIndex] = generation + index;
     }
 
     public final Match getBestMatch(final int index, final byte[] targetBuf) {
+        long match = bestMatch(index, targetBuf);
+        return new Match(Match.index(match), Match.length(match));
+    }
+
+    /**
+     * Finds the longest match for the bytes at targetBuf[index], returning it
+     * packed as per Match.pack.  A length of 0 means there was no match.
+     */
+    public final long bestMatch(final int index, final byte[] targetBuf) {
+        return bestMatch(index, targetBuf, targetBuf == buffer ? bufferWords : wordView(targetBuf));
+    }
+    
+    /**
+     * As per bestMatch(int, byte[]), where targetWords is wordView(targetBuf).
+     */
+    public final long bestMatch(final int index, final byte[] targetBuf, final ByteBuffer targetWords) {
         int bestMatchIndex = 0;
         int bestMatchLength = 0;
         
         final int bufLen = this.buffer.length;
         
         if (bufLen == 0) {
-            return new Match(0, 0);
+            return 0;
         }
         
         final int targetBufLen = targetBuf.length;
@@ -65,8 +222,13 @@ public class PrefixHash {
         final int maxLimit = Math.min(255, targetBufLen - index);
         
         int targetHashIndex = hashIndex(targetBuf, index);
-        int candidateIndex = hash[targetHashIndex];
-        while (candidateIndex >= 0) {
+        final int generation = this.generation;
+        final int[] heap = this.heap;
+        final IntBuffer loadedHeap = this.loadedHeap;
+        int candidate = hash != null ? hash[targetHashIndex] : loadedHash.get(targetHashIndex);
+        int numIterations = 0;
+        while (candidate >= generation) {
+            final int candidateIndex = candidate - generation;
             int distance;
             if (targetBuf != this.buffer) {
                 distance = index + bufLen - candidateIndex;
@@ -80,23 +242,159 @@ public class PrefixHash {
                 break;
             }
             
-            final int maxMatchJ = index + Math.min(maxLimit, bufLen - candidateIndex);
-            int j, k;
-            for (j = index, k = candidateIndex; j < maxMatchJ; j++, k++) {
-                if (this.buffer[k] != targetBuf[j]) {
-                    break;
-                }
-            }
-            
-            final int matchLength = j - index;
+            final int matchLength = matchLength(targetBuf, targetWords, index, candidateIndex, Math.min(maxLimit, bufLen - candidateIndex));
             if (matchLength > bestMatchLength) {
                 bestMatchIndex = candidateIndex;
                 bestMatchLength = matchLength;
             }
-            candidateIndex = heap[candidateIndex];
+            candidate = heap != null ? heap[candidateIndex] : loadedHeap.get(candidateIndex);
+            if (iterationLimit > 0 && numIterations++ > iterationLimit) {
+                break;
+            }
         }
 
-        return new Match(bestMatchIndex, bestMatchLength);
+        return Match.pack(bestMatchIndex, bestMatchLength);
+    }
+
+    /**
+     * Finds every match for the bytes at targetBuf[index] which is longer than
+     * all matches nearer to it, i.e. the nearest match of each length.  Matches
+     * are stored in matches (packed as per Match.pack) nearest first, and the
+     * number found is returned.  Since lengths strictly increase and are capped
+     * at 255, matches needs room for at most 256 entries.
+     */
+    public final int matches(final int index, final byte[] targetBuf, final ByteBuffer targetWords, final long[] matches) {
+        final int bufLen = this.buffer.length;
+
+        if (bufLen == 0) {
+            return 0;
+        }
+
+        final int maxLimit = Math.min(255, targetBuf.length - index);
+
+        int numMatches = 0;
+        int bestMatchLength = 0;
+        int targetHashIndex = hashIndex(targetBuf, index);
+        final int generation = this.generation;
+        final int[] heap = this.heap;
+        final IntBuffer loadedHeap = this.loadedHeap;
+        int candidate = hash != null ? hash[targetHashIndex] : loadedHash.get(targetHashIndex);
+        int numIterations = 0;
+        while (candidate >= generation && bestMatchLength < maxLimit) {
+            final int candidateIndex = candidate - generation;
+            int distance;
+            if (targetBuf != this.buffer) {
+                distance = index + bufLen - candidateIndex;
+            }
+            else {
+                distance = index - candidateIndex;
+            }
+            if (distance > (2<<15)-1) {
+                break;
+            }
+
+            // Only a longer match is of interest, so first check the byte which would make it longer.
+            final int limit = Math.min(maxLimit, bufLen - candidateIndex);
+            if (limit > bestMatchLength && buffer[candidateIndex + bestMatchLength] == targetBuf[index + bestMatchLength]) {
+                final int matchLength = matchLength(targetBuf, targetWords, index, candidateIndex, limit);
+                if (matchLength > bestMatchLength) {
+                    matches[numMatches++] = Match.pack(candidateIndex, matchLength);
+                    bestMatchLength = matchLength;
+                }
+            }
+            candidate = heap != null ? heap[candidateIndex] : loadedHeap.get(candidateIndex);
+            if (iterationLimit > 0 && numIterations++ > iterationLimit) {
+                break;
+            }
+        }
+
+        return numMatches;
+    }
+    
+    /**
+     * Writes out the hash tables so a model can skip hashing its dictionary
+     * at load time.  The tables are padded to start on an 8 byte boundary of
+     * the stream so they can be memory mapped efficiently by load.
+     */
+    public void save(DataOutputStream out) throws IOException {
+        if (generation != 0) {
+            throw new IllegalStateException("Only a hash of a single buffer can be saved");
+        }
+        IntBuffer hashInts = loadedHash != null ? loadedHash.duplicate() : IntBuffer.wrap(hash, 0, hashCapacity);
+        IntBuffer heapInts = loadedHeap != null ? loadedHeap.duplicate() : IntBuffer.wrap(heap, 0, buffer.length);
+        
+        out.writeInt(hashCapacity);
+        out.writeInt(buffer.length);
+        int padding = (8 - ((out.size() + 1) & 7)) & 7;
+        out.writeByte(padding);
+        out.write(new byte[padding]);
+        
+        ByteBuffer bytes = ByteBuffer.allocate(4 * (hashCapacity + buffer.length));
+        bytes.asIntBuffer().put(hashInts).put(heapInts);
+        out.write(bytes.array());
+    }
+    
+    /**
+     * Loads a hash of buf previously written with save.  If in is a
+     * FileDataInputStream the tables are memory mapped rather than read,
+     * so they are paged in lazily and shared by all processes using the file.
+     */
+    public static PrefixHash load(byte[] buf, DataInputStream in, int compressionLevel) throws IOException {
+        return load(buf, in, compressionLevel, 0);
     }
     
+    /**
+     * As per load(byte[], DataInputStream, int) for a hash which was created
+     * with the given hashBits.
+     */
+    public static PrefixHash load(byte[] buf, DataInputStream in, int compressionLevel, int hashBits) throws IOException {
+        int hashCapacity = in.readInt();
+        int heapLength = in.readInt();
+        if (heapLength != buf.length || hashCapacity < 0) {
+            throw new IOException("Bad model in stream.  Hash of length " + heapLength + " does not match dictionary of length " + buf.length);
+        }
+        if (hashBits < 0 || hashBits > MaxHashBits || (hashBits != 0 && hashCapacity != 1 << hashBits)) {
+            throw new IOException("Bad model in stream.  Hash capacity " + hashCapacity + " does not match hash bits " + hashBits);
+        }
+        in.skipBytes(in.readByte());
+        
+        int length = 4 * (hashCapacity + heapLength);
+        if (in instanceof FileDataInputStream) {
+            ByteBuffer bytes = ((FileDataInputStream)in).map(length);
+            bytes.limit(4 * hashCapacity);
+            IntBuffer hash = bytes.slice().asIntBuffer();
+            bytes.limit(length).position(4 * hashCapacity);
+            IntBuffer heap = bytes.slice().asIntBuffer();
+            return new PrefixHash(buf, hashBits, hashCapacity, null, null, hash, heap, compressionLevel);
+        }
+        
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        IntBuffer ints = ByteBuffer.wrap(bytes).asIntBuffer();
+        int[] hash = new int[hashCapacity];
+        int[] heap = new int[heapLength];
+        ints.get(hash).get(heap);
+        return new PrefixHash(buf, hashBits, hashCapacity, hash, heap, null, null, compressionLevel);
+    }
+    
+    private int matchLength(final byte[] targetBuf, final ByteBuffer targetWords, final int index, final int candidateIndex, final int maxLength) {
+        final byte[] buffer = this.buffer;
+        final ByteBuffer bufferWords = this.bufferWords;
+        int length = 0;
+        
+        // Compare a word at a time.  When the words differ, the lowest set bit of
+        // their xor is in the first mismatching byte (since the views are little endian).
+        while (length + 8 <= maxLength) {
+            long diff = targetWords.getLong(index + length) ^ bufferWords.getLong(candidateIndex + length);
+            if (diff != 0) {
+                return length + (Long.numberOfTrailingZeros(diff) >>> 3);
+            }
+            length += 8;
+        }
+        
+        while (length < maxLength && buffer[candidateIndex + length] == targetBuf[index + length]) {
+            length++;
+        }
+        return length;
+    }
 }
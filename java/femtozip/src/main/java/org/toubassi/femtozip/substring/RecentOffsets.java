@@ -0,0 +1,67 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.substring;
+
+import java.util.Arrays;
+
+/**
+ * The offsets of the most recent substrings, most recent first, which a
+ * format can refer to more cheaply than spelling the offset out again.
+ * Encoder and decoder call use for every substring so they stay in step.
+ */
+public class RecentOffsets {
+    private int[] offsets;
+    
+    public RecentOffsets(int count) {
+        offsets = new int[count];
+    }
+    
+    /**
+     * Forgets every offset, as at the start of a new document.
+     */
+    public void clear() {
+        Arrays.fill(offsets, 0);
+    }
+    
+    public int size() {
+        return offsets.length;
+    }
+    
+    /**
+     * Returns the offset at index, or 0 if fewer substrings than that have been seen.
+     */
+    public int get(int index) {
+        return offsets[index];
+    }
+    
+    /**
+     * Makes offset the most recent, returning its previous index, or -1
+     * if it wasn't one of the recent offsets.
+     */
+    public int use(int offset) {
+        int[] offsets = this.offsets;
+        if (offsets.length == 0) {
+            return -1;
+        }
+        int index = 0;
+        while (index < offsets.length && offsets[index] != offset) {
+            index++;
+        }
+        System.arraycopy(offsets, 0, offsets, 1, Math.min(index, offsets.length - 1));
+        offsets[0] = offset;
+        return index < offsets.length ? index : -1;
+    }
+}
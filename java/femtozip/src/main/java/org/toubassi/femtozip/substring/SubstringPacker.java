@@ -15,12 +15,26 @@
  */
 package org.toubassi.femtozip.substring;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class SubstringPacker {
     private static final int MinimumMatchLength = PrefixHash.PrefixLength;
     
+    // When parsing optimally, a match at least this long is taken without
+    // searching the positions it covers.
+    private static final int NiceMatchLength = 128;
+    
+    // Documents bigger than this are hashed with a throwaway PrefixHash so an
+    // occasional huge document doesn't pin a huge table to the thread.
+    private static final int MaxRetainedHashLength = 128 * 1024;
+    
     private byte[] dictionary;
     private PrefixHash dictHash;
+    private int compressionLevel;
+    private int hashBits;
+    private int numRepeatOffsets;
+    private ThreadLocal<PrefixHash> threadHash = new ThreadLocal<PrefixHash>();
     
     public interface Consumer {
         public void encodeLiteral(int aByte, Object context);
@@ -28,14 +42,108 @@ public class SubstringPacker {
         public void endEncoding(Object context);
     }
     
+    /**
+     * Prices literals and substrings in bits, so pack can search for the
+     * cheapest parse of a document rather than taking matches greedily.
+     */
+    public interface CostModel {
+        public int literalCost(int aByte);
+        public int substringCost(int offset, int length);
+    }
+    
     public SubstringPacker(byte[] dictionary) {
+        this(dictionary, 9);
+    }
+    
+    public SubstringPacker(byte[] dictionary, int compressionLevel) {
+        this(dictionary, compressionLevel, 0);
+    }
+    
+    /**
+     * hashBits selects the PrefixHash hashing scheme, see PrefixHash(byte[], boolean, int, int).
+     */
+    public SubstringPacker(byte[] dictionary, int compressionLevel, int hashBits) {
+        this(dictionary, compressionLevel, new PrefixHash(dictionary == null ? new byte[0] : dictionary, true, compressionLevel, hashBits));
+    }
+    
+    /**
+     * Creates a packer using a dictionary hash which was built ahead of time
+     * (e.g. loaded with a model), rather than hashing the dictionary here.
+     */
+    public SubstringPacker(byte[] dictionary, int compressionLevel, PrefixHash dictHash) {
         this.dictionary = dictionary = dictionary == null ? new byte[0] : dictionary;
-        dictHash = new PrefixHash(dictionary, true);
+        this.compressionLevel = compressionLevel;
+        this.dictHash = dictHash != null ? dictHash : new PrefixHash(dictionary, true, compressionLevel);
+        this.hashBits = this.dictHash.getHashBits();
+    }
+    
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+    
+    public int getHashBits() {
+        return hashBits;
+    }
+    
+    /**
+     * If the consumer can encode a substring at one of the last
+     * numRepeatOffsets offsets cheaply (see RecentOffsets), the greedy parse
+     * will take a match at one of those offsets over an equally long match
+     * found by hashing.
+     */
+    public void setNumRepeatOffsets(int numRepeatOffsets) {
+        this.numRepeatOffsets = numRepeatOffsets;
+    }
+    
+    public int getNumRepeatOffsets() {
+        return numRepeatOffsets;
+    }
+    
+    public PrefixHash getDictionaryHash() {
+        return dictHash;
     }
     
     public void pack(byte[] rawBytes, SubstringPacker.Consumer consumer, Object consumerContext) {
-        PrefixHash hash = new PrefixHash(rawBytes, false);
+        pack(rawBytes, consumer, consumerContext, (CostModel)null);
+    }
+    
+    /**
+     * Packs rawBytes choosing the parse which is cheapest according to costs,
+     * or greedily if costs is null.
+     */
+    public void pack(byte[] rawBytes, SubstringPacker.Consumer consumer, Object consumerContext, CostModel costs) {
+        PrefixHash hash;
+        if (rawBytes.length > MaxRetainedHashLength) {
+            hash = new PrefixHash(rawBytes, false, compressionLevel, hashBits);
+        }
+        else {
+            hash = threadHash.get();
+            if (hash == null) {
+                hash = new PrefixHash(new byte[0], false, compressionLevel, hashBits);
+                threadHash.set(hash);
+            }
+        }
+        pack(rawBytes, consumer, consumerContext, hash, costs);
+    }
+    
+    /**
+     * Packs rawBytes, using the caller owned hash to find matches within rawBytes
+     * itself.  The hash is reset to rawBytes first, so a caller can keep one
+     * around and reuse it for every document it compresses.
+     */
+    public void pack(byte[] rawBytes, SubstringPacker.Consumer consumer, Object consumerContext, PrefixHash hash) {
+        pack(rawBytes, consumer, consumerContext, hash, null);
+    }
+    
+    public void pack(byte[] rawBytes, SubstringPacker.Consumer consumer, Object consumerContext, PrefixHash hash, CostModel costs) {
+        hash.reset(rawBytes);
+        if (costs != null) {
+            packOptimal(rawBytes, consumer, consumerContext, hash, costs);
+            return;
+        }
+        ByteBuffer rawWords = hash.getWordView();
         int dictLen = dictionary.length;
+        RecentOffsets recentOffsets = numRepeatOffsets > 0 ? new RecentOffsets(numRepeatOffsets) : null;
 
         int previousMatchIndex = 0;
         int previousMatchLength = 0;
@@ -46,17 +154,31 @@ public class SubstringPacker {
             int bestMatchLength = 0;
             
             if (curr + PrefixHash.PrefixLength - 1 < count) {
-                Match match = dictHash.getBestMatch(curr, rawBytes);
-                bestMatchIndex = match.bestMatchIndex;
-                bestMatchLength = match.bestMatchLength;
+                long match = dictHash.bestMatch(curr, rawBytes, rawWords);
+                bestMatchIndex = Match.index(match);
+                bestMatchLength = Match.length(match);
 
-                match = hash.getBestMatch(curr, rawBytes);
+                match = hash.bestMatch(curr, rawBytes, rawWords);
                 
                 // Note the >= because we prefer a match that is nearer (and a match
                 // in the string being compressed is always closer than one from the dict).
-                if (match.bestMatchLength >= bestMatchLength) {
-                    bestMatchIndex = match.bestMatchIndex + dictLen;
-                    bestMatchLength = match.bestMatchLength;
+                if (Match.length(match) >= bestMatchLength) {
+                    bestMatchIndex = Match.index(match) + dictLen;
+                    bestMatchLength = Match.length(match);
+                }
+                
+                if (recentOffsets != null) {
+                    for (int i = 0; i < numRepeatOffsets; i++) {
+                        int offset = recentOffsets.get(i);
+                        int matchIndex = curr + dictLen - offset;
+                        if (offset > 0 && matchIndex >= 0) {
+                            int matchLength = repeatMatchLength(rawBytes, curr, matchIndex);
+                            if (matchLength >= bestMatchLength) {
+                                bestMatchIndex = matchIndex;
+                                bestMatchLength = matchLength;
+                            }
+                        }
+                    }
                 }
                 
                 hash.put(curr);
@@ -68,7 +190,11 @@ public class SubstringPacker {
             
             if (previousMatchLength > 0 && bestMatchLength <= previousMatchLength) {
                 // We didn't get a match or we got one and the previous match is better
-                consumer.encodeSubstring(-(curr + dictLen - 1 - previousMatchIndex), previousMatchLength, consumerContext);
+                int offset = curr + dictLen - 1 - previousMatchIndex;
+                consumer.encodeSubstring(-offset, previousMatchLength, consumerContext);
+                if (recentOffsets != null) {
+                    recentOffsets.use(offset);
+                }
                 
                 // Make sure locations are added for the match.  This allows repetitions to always
                 // encode the same relative locations which is better for compressing the locations.
@@ -99,5 +225,124 @@ public class SubstringPacker {
         }
         consumer.endEncoding(consumerContext);
     }
-
+    
+    /**
+     * The length of the match for rawBytes[curr] at matchIndex, where the
+     * dictionary and rawBytes are treated as one contiguous buffer, as the
+     * SubstringUnpacker does.
+     */
+    private int repeatMatchLength(byte[] rawBytes, int curr, int matchIndex) {
+        byte[] dictionary = this.dictionary;
+        int dictLen = dictionary.length;
+        int maxLength = Math.min(255, rawBytes.length - curr);
+        int length = 0;
+        while (length < maxLength) {
+            int i = matchIndex + length;
+            if ((i < dictLen ? dictionary[i] : rawBytes[i - dictLen]) != rawBytes[curr + length]) {
+                break;
+            }
+            length++;
+        }
+        return length;
+    }
+    
+    /**
+     * Finds the cheapest parse of rawBytes by dynamic programming over every
+     * nearest match of each length at each position, then replays it to the
+     * consumer.
+     */
+    private void packOptimal(byte[] rawBytes, SubstringPacker.Consumer consumer, Object consumerContext, PrefixHash hash, CostModel costs) {
+        ByteBuffer rawWords = hash.getWordView();
+        int dictLen = dictionary.length;
+        int count = rawBytes.length;
+        
+        // cost[i] is the cheapest encoding of the first i bytes, whose last step
+        // is a literal if length[i] is 0 and otherwise a substring at offset[i].
+        int[] cost = new int[count + 1];
+        int[] length = new int[count + 1];
+        int[] offset = new int[count + 1];
+        Arrays.fill(cost, 1, count + 1, Integer.MAX_VALUE);
+        
+        long[] matches = new long[256];
+        long[] dictMatches = new long[256];
+        
+        int skipTo = 0;
+        for (int curr = 0; curr < count; curr++) {
+            if (curr < skipTo) {
+                // Inside a long match, so just hash the position.
+                if (curr + PrefixHash.PrefixLength - 1 < count) {
+                    hash.put(curr);
+                }
+                continue;
+            }
+            
+            int literalCost = cost[curr] + costs.literalCost(((int)rawBytes[curr]) & 0xff);
+            if (literalCost < cost[curr + 1]) {
+                cost[curr + 1] = literalCost;
+                length[curr + 1] = 0;
+            }
+            
+            if (curr + PrefixHash.PrefixLength - 1 < count) {
+                // Matches within rawBytes are always nearer than those in the dictionary,
+                // so the dictionary only offers lengths rawBytes can't.
+                int numMatches = hash.matches(curr, rawBytes, rawWords, matches);
+                int longest = priceMatches(curr, curr, matches, numMatches, MinimumMatchLength - 1, cost, length, offset, costs);
+                
+                int numDictMatches = dictHash.matches(curr, rawBytes, rawWords, dictMatches);
+                longest = priceMatches(curr, curr + dictLen, dictMatches, numDictMatches, longest, cost, length, offset, costs);
+                
+                hash.put(curr);
+                
+                // As with zlib's nice_length, searching every position of a long match costs
+                // far more than it could save, so parse on from its end.
+                if (longest >= NiceMatchLength) {
+                    skipTo = curr + longest;
+                }
+            }
+        }
+        
+        // Walk back from the end to recover the chosen steps (reusing cost to hold
+        // the end of each step), then replay them in order.
+        int numSteps = 0;
+        for (int end = count; end > 0; end -= length[end] == 0 ? 1 : length[end]) {
+            cost[numSteps++] = end;
+        }
+        while (numSteps > 0) {
+            int end = cost[--numSteps];
+            if (length[end] == 0) {
+                consumer.encodeLiteral(((int)rawBytes[end - 1]) & 0xff, consumerContext);
+            }
+            else {
+                consumer.encodeSubstring(offset[end], length[end], consumerContext);
+            }
+        }
+        consumer.endEncoding(consumerContext);
+    }
+    
+    /**
+     * Relaxes the cost of every position reachable from curr by the given
+     * matches (nearest first, as per PrefixHash.matches), using each length
+     * longer than previousLength from the nearest match offering it.  Returns
+     * the longest length priced.
+     */
+    private static int priceMatches(int curr, int distanceBase, long[] matches, int numMatches, int previousLength, int[] cost, int[] length, int[] offset, CostModel costs) {
+        int base = cost[curr];
+        for (int i = 0; i < numMatches; i++) {
+            int matchLength = Match.length(matches[i]);
+            if (matchLength <= previousLength) {
+                continue;
+            }
+            int matchOffset = -(distanceBase - Match.index(matches[i]));
+            for (int l = previousLength + 1; l <= matchLength; l++) {
+                int substringCost = base + costs.substringCost(matchOffset, l);
+                if (substringCost <= cost[curr + l]) {
+                    cost[curr + l] = substringCost;
+                    length[curr + l] = l;
+                    offset[curr + l] = matchOffset;
+                }
+            }
+            previousLength = matchLength;
+        }
+        return previousLength;
+    }
 }
@@ -40,6 +40,9 @@ public class SubstringUnpacker implements SubstringPacker.Consumer {
 
     public void encodeSubstring(int offset, int length, Object context) {
         int currentIndex = bytesOut.size();
+        if (offset >= 0 || currentIndex + offset < -dictionary.length) {
+            throw new IllegalArgumentException("Corrupt compressed data, offset " + offset + " out of range");
+        }
         if (currentIndex + offset < 0) {
             int startDict = currentIndex + offset + dictionary.length;
             int endDict = startDict + length;
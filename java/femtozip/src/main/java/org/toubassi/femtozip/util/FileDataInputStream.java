@@ -0,0 +1,102 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A buffered DataInputStream over a file, which keeps track of its position
+ * in the file so that large sections (e.g. precomputed hash tables in a
+ * model) can be memory mapped instead of read.
+ */
+public class FileDataInputStream extends DataInputStream {
+
+    private FileChannel channel;
+    private CountingInputStream counter;
+
+    public FileDataInputStream(FileInputStream in) {
+        this(new CountingInputStream(new BufferedInputStream(in)), in.getChannel());
+    }
+
+    private FileDataInputStream(CountingInputStream counter, FileChannel channel) {
+        super(counter);
+        this.counter = counter;
+        this.channel = channel;
+    }
+
+    public long position() {
+        return counter.count;
+    }
+
+    /**
+     * Memory maps the next length bytes of the file read only, and skips
+     * past them.  The mapping remains valid after this stream is closed.
+     */
+    public MappedByteBuffer map(int length) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position(), length);
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+        return mapped;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
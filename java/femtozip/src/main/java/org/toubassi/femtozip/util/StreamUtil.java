@@ -16,8 +16,10 @@
 package org.toubassi.femtozip.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 public class StreamUtil {
 
@@ -43,4 +45,31 @@ public class StreamUtil {
         }
         return bytesOut.toByteArray();
     }
+    
+    /**
+     * Writes a non negative int 7 bits at a time, low bits first, with the
+     * high bit of each byte set if more follow.
+     */
+    public static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    public static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length int");
+    }
 }
@@ -0,0 +1,115 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.toubassi.femtozip.models.CompiledModel;
+import org.toubassi.femtozip.models.Compressor;
+import org.toubassi.femtozip.models.Decompressor;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+
+/**
+ * Shares one CompiledModel between 1 up to twice the number of cores
+ * threads, reporting how the throughput of compressing and decompressing
+ * small documents scales.  With no shared mutable state it should scale
+ * linearly up to the core count.
+ *
+ * Run after mvn test-compile with
+ * java -cp target/classes:target/test-classes org.toubassi.femtozip.CompiledModelBenchmark [milliseconds per run]
+ */
+public class CompiledModelBenchmark {
+
+    private static class TimedThread extends Thread {
+
+        long runTime;
+        CompiledModel model;
+        byte[][] documents;
+        int count;
+        Exception e;
+
+        TimedThread(long runTimeMillis, CompiledModel model, byte[][] documents) {
+            runTime = runTimeMillis;
+            this.model = model;
+            this.documents = documents;
+        }
+
+        public void run() {
+            try {
+                Compressor compressor = model.createCompressor();
+                Decompressor decompressor = model.createDecompressor();
+                long start = System.currentTimeMillis();
+                while (System.currentTimeMillis() - start < runTime) {
+                    byte[] document = documents[count++ % documents.length];
+                    byte[] decompressed = decompressor.decompress(compressor.compress(document));
+                    if (!Arrays.equals(document, decompressed)) {
+                        throw new RuntimeException("Document " + new String(document) + " decompressed to " + new String(decompressed));
+                    }
+                }
+            }
+            catch (Exception e) {
+                this.e = e;
+            }
+        }
+    }
+
+    static byte[][] documents(int count) {
+        Random random = new Random(1234567);
+        byte[][] documents = new byte[count][];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = String.format("{\"id\":%d,\"user\":\"user%d\",\"status\":\"%s\",\"score\":%d}",
+                    i, random.nextInt(1000), random.nextBoolean() ? "active" : "closed", random.nextInt()).getBytes();
+        }
+        return documents;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long runTime = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        byte[][] documents = documents(200);
+        FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+        model.build(new ArrayDocumentList(new ArrayList<byte[]>(Arrays.asList(documents))));
+        CompiledModel compiled = model.getCompiledModel();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        double singleThreadRate = 0;
+        for (int numThreads = 1; numThreads <= 2 * cores; numThreads *= 2) {
+            ArrayList<TimedThread> threads = new ArrayList<TimedThread>();
+            for (int i = 0; i < numThreads; i++) {
+                threads.add(new TimedThread(runTime, compiled, documents));
+            }
+            long start = System.nanoTime();
+            for (TimedThread thread : threads) {
+                thread.start();
+            }
+            int count = 0;
+            for (TimedThread thread : threads) {
+                thread.join();
+                if (thread.e != null) {
+                    throw new RuntimeException(thread.e);
+                }
+                count += thread.count;
+            }
+            double rate = count / ((System.nanoTime() - start) / 1e9);
+            if (numThreads == 1) {
+                singleThreadRate = rate;
+            }
+            System.out.println(String.format("%d threads (%d cores): %.0f documents/s, %.2fx", numThreads, cores, rate, rate / singleThreadRate));
+        }
+    }
+}
@@ -15,15 +15,27 @@
  */
 package org.toubassi.femtozip;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.toubassi.femtozip.models.BlockCompressionModel;
+import org.toubassi.femtozip.models.FramedCompressionModel;
 import org.toubassi.femtozip.models.GZipCompressionModel;
 import org.toubassi.femtozip.models.GZipDictionaryCompressionModel;
 import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+import org.toubassi.femtozip.models.FemtoZipInputStream;
+import org.toubassi.femtozip.models.FemtoZipOutputStream;
 import org.toubassi.femtozip.models.PureHuffmanCompressionModel;
 import org.toubassi.femtozip.models.VariableIntCompressionModel;
 import org.toubassi.femtozip.models.VerboseStringCompressionModel;
@@ -66,6 +78,442 @@ public class CompressionTest {
         }
     }
     
+    @Test
+    public void testCompressionLevels() throws IOException {
+        for (int level = 0; level <= 9; level++) {
+            CompressionModel model = new FemtoZipCompressionModel();
+            model.setCompressionLevel(level);
+            Assert.assertEquals(level, model.getCompressionLevel());
+            testModel(PreambleString, PreambleDictionary, model, level == 9 ? 205 : -1);
+        }
+    }
+    
+    @Test
+    public void testPersistedDictionaryHash() throws IOException {
+        FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+        model.setDictionary(PreambleDictionary.getBytes());
+        model.build(new ArrayDocumentList(PreambleString.getBytes()));
+        model.setPersistDictionaryHash(true);
+        byte[] expected = model.compress(PreambleString.getBytes());
+        
+        // Memory mapped from a file
+        File file = File.createTempFile("femtozip", ".fzmodel");
+        try {
+            model.save(file.getPath());
+            CompressionModel loaded = CompressionModel.loadModel(file.getPath());
+            Assert.assertTrue(loaded.getPersistDictionaryHash());
+            Assert.assertArrayEquals(expected, loaded.compress(PreambleString.getBytes()));
+            testBuiltModel(loaded, PreambleString.getBytes(), 205);
+            
+            loaded.setCompressionLevel(0);
+            testBuiltModel(loaded, PreambleString.getBytes(), -1);
+        }
+        finally {
+            file.delete();
+        }
+        
+        // Read from a plain stream
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        model.save(new DataOutputStream(bytesOut));
+        FemtoZipCompressionModel loaded = new FemtoZipCompressionModel();
+        loaded.load(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+        Assert.assertArrayEquals(expected, loaded.compress(PreambleString.getBytes()));
+        
+        // And the hash can be saved again from a loaded model
+        ByteArrayOutputStream resavedOut = new ByteArrayOutputStream();
+        loaded.save(new DataOutputStream(resavedOut));
+        Assert.assertArrayEquals(bytesOut.toByteArray(), resavedOut.toByteArray());
+    }
+    
+    @Test
+    public void testHashBits() throws IOException {
+        for (boolean persistHash : new boolean[] {false, true}) {
+            FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+            model.setHashBits(16);
+            testModel(PreambleString, PreambleDictionary, model, -1);
+            model.setPersistDictionaryHash(persistHash);
+            byte[] expected = model.compress(PreambleString.getBytes());
+            
+            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+            model.save(new DataOutputStream(bytesOut));
+            FemtoZipCompressionModel loaded = new FemtoZipCompressionModel();
+            loaded.load(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+            Assert.assertEquals(16, loaded.getHashBits());
+            Assert.assertEquals(persistHash, loaded.getPersistDictionaryHash());
+            Assert.assertArrayEquals(expected, loaded.compress(PreambleString.getBytes()));
+            testBuiltModel(loaded, PreambleString.getBytes(), expected.length);
+        }
+    }
+    
+    @Test
+    public void testRepeatOffsets() throws IOException {
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            records.append(String.format("%04d,user%d,%s\n", i, i * 7 % 10, i % 3 == 0 ? "active" : "closed"));
+        }
+        
+        for (int numRepeatOffsets = 0; numRepeatOffsets <= FemtoZipCompressionModel.MaxRepeatOffsets; numRepeatOffsets++) {
+            FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+            model.setNumRepeatOffsets(numRepeatOffsets);
+            testModel(PreambleString, PreambleDictionary, model, numRepeatOffsets == 0 ? 205 : -1);
+            testModel(records.toString(), null, model, -1);
+            byte[] expected = model.compress(records.toString().getBytes());
+            
+            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+            model.save(new DataOutputStream(bytesOut));
+            FemtoZipCompressionModel loaded = new FemtoZipCompressionModel();
+            loaded.load(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+            Assert.assertEquals(numRepeatOffsets, loaded.getNumRepeatOffsets());
+            Assert.assertArrayEquals(expected, loaded.compress(records.toString().getBytes()));
+            testBuiltModel(loaded, records.toString().getBytes(), expected.length);
+            
+            loaded.setOptimalParsing(true);
+            testBuiltModel(loaded, records.toString().getBytes(), -1);
+        }
+    }
+    
+    @Test
+    public void testRepeatOffsetsChangedAfterBuild() throws IOException {
+        byte[] data = PreambleString.getBytes();
+        for (int built : new int[] {0, 2}) {
+            FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+            model.setNumRepeatOffsets(built);
+            model.setDictionary(PreambleDictionary.getBytes());
+            model.build(new ArrayDocumentList(data));
+            byte[] expected = model.compress(data);
+            
+            // Only takes effect on the next build, so the model keeps the codes it was built with
+            int requested = 3 - built;
+            model.setNumRepeatOffsets(requested);
+            Assert.assertEquals(built, model.getCompiledModel().getNumRepeatOffsets());
+            Assert.assertArrayEquals(expected, model.compress(data));
+            testBuiltModel(model, data, expected.length);
+            
+            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+            model.save(new DataOutputStream(bytesOut));
+            FemtoZipCompressionModel loaded = new FemtoZipCompressionModel();
+            loaded.load(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+            loaded.setNumRepeatOffsets(requested);
+            Assert.assertArrayEquals(expected, loaded.compress(data));
+            testBuiltModel(loaded, data, expected.length);
+            
+            model.build(new ArrayDocumentList(data));
+            Assert.assertEquals(requested, model.getCompiledModel().getNumRepeatOffsets());
+            testBuiltModel(model, data, -1);
+        }
+    }
+    
+    @Test
+    public void testPureHuffmanSaveFormat() throws IOException {
+        PureHuffmanCompressionModel model = new PureHuffmanCompressionModel();
+        model.build(new ArrayDocumentList(PreambleString));
+        byte[] expected = model.compress(PreambleString.getBytes());
+        
+        // Saved without a format version, so the codes are saved as older versions read them
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        model.save(new DataOutputStream(bytesOut));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray()));
+        Assert.assertEquals(257, in.readInt());
+        
+        PureHuffmanCompressionModel loaded = new PureHuffmanCompressionModel();
+        loaded.load(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+        Assert.assertArrayEquals(expected, loaded.compress(PreambleString.getBytes()));
+        testBuiltModel(loaded, PreambleString.getBytes(), expected.length);
+    }
+    
+    @Test
+    public void testMaxCodeLength() throws IOException {
+        for (int maxCodeLength : new int[] {10, 12, 16}) {
+            FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+            model.setMaxCodeLength(maxCodeLength);
+            testModel(PreambleString, PreambleDictionary, model, -1);
+            
+            // Limited codes are still prefix codes, so survive a save and load
+            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+            model.save(new DataOutputStream(bytesOut));
+            FemtoZipCompressionModel loaded = new FemtoZipCompressionModel();
+            loaded.load(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+            byte[] expected = model.compress(PreambleString.getBytes());
+            Assert.assertArrayEquals(expected, loaded.compress(PreambleString.getBytes()));
+            testBuiltModel(loaded, PreambleString.getBytes(), expected.length);
+        }
+    }
+    
+    @Test
+    public void testBlockCompressionModel() throws IOException {
+        byte[] sourceBytes = PreambleString.getBytes();
+        BlockCompressionModel model = new BlockCompressionModel(new FemtoZipCompressionModel(), 64);
+        testModel(PreambleString, PreambleDictionary, model, -1);
+        Assert.assertEquals(PreambleDictionary, new String(model.getDictionary()));
+        testBuiltModel(model, new byte[0], -1);
+        testBuiltModel(model, Arrays.copyOf(sourceBytes, 64), -1);
+        testBuiltModel(model, Arrays.copyOf(sourceBytes, 65), -1);
+        
+        // A single block costs a few bytes over the wrapped model
+        model.setBlockSize(BlockCompressionModel.DefaultBlockSize);
+        Assert.assertEquals(205 + 5, model.compress(sourceBytes).length);
+        
+        model.setBlockSize(16);
+        ForkJoinPool pool = new ForkJoinPool(3);
+        File file = File.createTempFile("femtozip", ".fzmodel");
+        try {
+            model.setPool(pool);
+            model.setHashBits(16);
+            byte[] compressed = model.compress(sourceBytes);
+            
+            model.save(file.getPath());
+            BlockCompressionModel loaded = (BlockCompressionModel)CompressionModel.loadModel(file.getPath());
+            Assert.assertEquals(16, loaded.getBlockSize());
+            Assert.assertTrue(loaded.getModel() instanceof FemtoZipCompressionModel);
+            Assert.assertEquals(16, loaded.getHashBits());
+            Assert.assertArrayEquals(compressed, loaded.compress(sourceBytes));
+            Assert.assertArrayEquals(sourceBytes, loaded.decompress(compressed));
+        }
+        finally {
+            file.delete();
+            pool.shutdown();
+        }
+        
+        model.setMaxDictionaryLength(32);
+        model.setDictionaryMemoryBudget(1 << 20);
+        model.setPersistDictionaryHash(true);
+        Assert.assertEquals(32, model.getModel().getMaxDictionaryLength());
+        Assert.assertEquals(1 << 20, model.getModel().getDictionaryMemoryBudget());
+        Assert.assertTrue(model.getModel().getPersistDictionaryHash());
+    }
+    
+    @Test
+    public void testFramedCompressionModel() throws IOException {
+        byte[] sourceBytes = PreambleString.getBytes();
+        FramedCompressionModel model = new FramedCompressionModel();
+        testModel(PreambleString, PreambleDictionary, model, 205 + 1 + 2 + 4);
+        testBuiltModel(model, new byte[0], -1);
+        
+        model.setChecksum(true);
+        byte[] compressed = model.compress(sourceBytes);
+        Assert.assertEquals(205 + 1 + 2 + 4 + 4, compressed.length);
+        Assert.assertEquals(sourceBytes.length, FramedCompressionModel.getUncompressedLength(compressed, 0, compressed.length));
+        Assert.assertArrayEquals(sourceBytes, model.decompress(compressed));
+        Assert.assertEquals(-sourceBytes.length, model.decompress(compressed, 0, compressed.length, new byte[10], 0));
+        
+        // Survives a save and load, and the fingerprint identifies the model
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        model.save(new DataOutputStream(bytesOut));
+        FramedCompressionModel loaded = new FramedCompressionModel();
+        loaded.load(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+        Assert.assertTrue(loaded.getChecksum());
+        Assert.assertEquals(model.getFingerprint(), loaded.getFingerprint());
+        Assert.assertArrayEquals(sourceBytes, loaded.decompress(compressed));
+        
+        FramedCompressionModel other = new FramedCompressionModel();
+        other.setDictionary("a different dictionary".getBytes());
+        other.build(new ArrayDocumentList(sourceBytes));
+        Assert.assertTrue(other.getFingerprint() != model.getFingerprint());
+        try {
+            other.decompress(compressed);
+            Assert.fail("Decompressed data from a different model");
+        }
+        catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("different model"));
+        }
+
+        // A length the data can't hold is rejected before it's allocated
+        byte[] huge = new byte[compressed.length + 3];
+        huge[0] = compressed[0];
+        huge[1] = huge[2] = huge[3] = huge[4] = (byte)0xff;
+        huge[5] = 0x07;
+        System.arraycopy(compressed, 3, huge, 6, compressed.length - 3);
+        try {
+            model.decompress(huge);
+            Assert.fail("Decompressed data with a corrupt length");
+        }
+        catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("Corrupt frame header"));
+        }
+
+        // Flip a bit of the checksum
+        compressed[1 + 2 + 4] ^= 1;
+        try {
+            model.decompress(compressed);
+            Assert.fail("Decompressed data with a bad checksum");
+        }
+        catch (RuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("checksum"));
+        }
+    }
+    
+    @Test
+    public void testCompressIntoBuffer() throws IOException {
+        byte[] sourceBytes = PreambleString.getBytes();
+        CompressionModel[] models = {new FemtoZipCompressionModel(), new PureHuffmanCompressionModel(), new GZipCompressionModel()};
+        for (CompressionModel model : models) {
+            model.setDictionary(PreambleDictionary.getBytes());
+            model.build(new ArrayDocumentList(sourceBytes));
+            byte[] expected = model.compress(sourceBytes);
+            
+            byte[] dest = new byte[expected.length + 3];
+            Assert.assertEquals(expected.length, model.compress(sourceBytes, dest, 3));
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(dest, 3, dest.length));
+            
+            Assert.assertEquals(-expected.length, model.compress(sourceBytes, dest, 4));
+            Assert.assertEquals(-expected.length, model.compress(sourceBytes, new byte[0], 0));
+        }
+    }
+    
+    @Test
+    public void testDecompressIntoBuffer() throws IOException {
+        byte[] sourceBytes = PreambleString.getBytes();
+        CompressionModel[] models = {new FemtoZipCompressionModel(), new PureHuffmanCompressionModel(), new GZipCompressionModel()};
+        for (CompressionModel model : models) {
+            model.setDictionary(PreambleDictionary.getBytes());
+            model.build(new ArrayDocumentList(sourceBytes));
+            byte[] compressed = model.compress(sourceBytes);
+            byte[] src = new byte[compressed.length + 7];
+            System.arraycopy(compressed, 0, src, 5, compressed.length);
+            
+            byte[] dest = new byte[sourceBytes.length + 3];
+            Assert.assertEquals(sourceBytes.length, model.decompress(src, 5, compressed.length, dest, 3));
+            Assert.assertArrayEquals(sourceBytes, Arrays.copyOfRange(dest, 3, dest.length));
+            
+            Assert.assertEquals(-sourceBytes.length, model.decompress(src, 5, compressed.length, dest, 4));
+            Assert.assertEquals(-sourceBytes.length, model.decompress(src, 5, compressed.length, new byte[0], 0));
+            
+            ByteBuffer[] destBuffers = {ByteBuffer.allocate(sourceBytes.length + 10), ByteBuffer.allocateDirect(sourceBytes.length + 10)};
+            for (ByteBuffer destBuffer : destBuffers) {
+                ByteBuffer srcBuffer = ByteBuffer.allocateDirect(compressed.length + 2);
+                srcBuffer.put(compressed).flip();
+                destBuffer.position(2).limit(sourceBytes.length + 1);
+                Assert.assertEquals(-sourceBytes.length, model.decompress(srcBuffer, destBuffer));
+                Assert.assertEquals(0, srcBuffer.position());
+                Assert.assertEquals(2, destBuffer.position());
+                
+                destBuffer.limit(destBuffer.capacity());
+                Assert.assertEquals(sourceBytes.length, model.decompress(srcBuffer, destBuffer));
+                Assert.assertEquals(srcBuffer.limit(), srcBuffer.position());
+                Assert.assertEquals(sourceBytes.length + 2, destBuffer.position());
+                byte[] decompressed = new byte[sourceBytes.length];
+                destBuffer.position(2);
+                destBuffer.get(decompressed);
+                Assert.assertArrayEquals(sourceBytes, decompressed);
+            }
+        }
+    }
+    
+    @Test
+    public void testPrefixDecompression() throws IOException {
+        byte[] sourceBytes = PreambleString.getBytes();
+        FemtoZipCompressionModel repeatOffsetsModel = new FemtoZipCompressionModel();
+        repeatOffsetsModel.setNumRepeatOffsets(2);
+        CompressionModel[] models = {new FemtoZipCompressionModel(), repeatOffsetsModel, new PureHuffmanCompressionModel(),
+                new GZipCompressionModel(), new GZipDictionaryCompressionModel(), new VerboseStringCompressionModel()};
+        for (CompressionModel model : models) {
+            model.setDictionary(PreambleDictionary.getBytes());
+            model.build(new ArrayDocumentList(sourceBytes));
+            byte[] compressed = model.compress(sourceBytes);
+            
+            for (int maxOutputBytes : new int[] {0, 1, 10, 100, 200, sourceBytes.length - 1, sourceBytes.length, sourceBytes.length + 10, Integer.MAX_VALUE}) {
+                byte[] expected = Arrays.copyOf(sourceBytes, Math.min(maxOutputBytes, sourceBytes.length));
+                Assert.assertArrayEquals(expected, model.decompress(compressed, maxOutputBytes));
+            }
+            
+            try {
+                model.decompress(compressed, -1);
+                Assert.fail("Decompressed with a negative maxOutputBytes");
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().contains("negative"));
+            }
+        }
+    }
+    
+    @Test
+    public void testStreams() throws IOException {
+        // Several windows worth, with matches near and beyond the maximum offset
+        Random random = new Random(1234567);
+        ByteArrayOutputStream document = new ByteArrayOutputStream();
+        while (document.size() < 300000) {
+            byte[] bytes = document.toByteArray();
+            if (bytes.length > 1000 && random.nextBoolean()) {
+                int start = random.nextInt(bytes.length - 500);
+                document.write(bytes, start, random.nextInt(500));
+            }
+            else if (random.nextBoolean()) {
+                document.write(PreambleString.getBytes(), 0, random.nextInt(PreambleString.length()));
+            }
+            else {
+                byte[] noise = new byte[random.nextInt(100)];
+                random.nextBytes(noise);
+                document.write(noise);
+            }
+        }
+        byte[] sourceBytes = document.toByteArray();
+
+        FemtoZipCompressionModel repeatOffsetsModel = new FemtoZipCompressionModel();
+        repeatOffsetsModel.setNumRepeatOffsets(2);
+        FemtoZipCompressionModel[] models = {new FemtoZipCompressionModel(), repeatOffsetsModel};
+        for (FemtoZipCompressionModel model : models) {
+            model.setDictionary(PreambleDictionary.getBytes());
+            model.build(new ArrayDocumentList(PreambleString.getBytes()));
+
+            for (byte[] bytes : new byte[][] {new byte[0], PreambleString.getBytes(), sourceBytes}) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                FemtoZipOutputStream out = new FemtoZipOutputStream(model, compressed);
+                for (int i = 0; i < bytes.length; ) {
+                    int count = Math.min(bytes.length - i, random.nextInt(20000));
+                    out.write(bytes, i, count);
+                    i += count;
+                    if (i < bytes.length) {
+                        out.write(bytes[i++]);
+                    }
+                }
+                out.close();
+                byte[] compressedBytes = compressed.toByteArray();
+
+                Assert.assertArrayEquals(bytes, model.decompress(compressedBytes));
+                Assert.assertArrayEquals(bytes, readStream(model, compressedBytes, random));
+                Assert.assertArrayEquals(bytes, readStream(model, model.compress(bytes), random));
+            }
+        }
+    }
+
+    private static byte[] readStream(FemtoZipCompressionModel model, byte[] compressedBytes, Random random) throws IOException {
+        FemtoZipInputStream in = new FemtoZipInputStream(model, new ByteArrayInputStream(compressedBytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[30000];
+        int count;
+        while ((count = in.read(buffer, 0, random.nextInt(buffer.length))) >= 0) {
+            out.write(buffer, 0, count);
+            int b = in.read();
+            if (b >= 0) {
+                out.write(b);
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testOptimalParsing() throws IOException {
+        byte[] sourceBytes = PreambleString.getBytes();
+        FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+        model.setDictionary(PreambleDictionary.getBytes());
+        model.build(new ArrayDocumentList(sourceBytes));
+        int greedySize = model.compress(sourceBytes).length;
+
+        // Priced by the same code model, the optimal parse can't be worse than the greedy one.
+        model.setOptimalParsing(true);
+        byte[] compressedBytes = model.compress(sourceBytes);
+        Assert.assertTrue(compressedBytes.length <= greedySize);
+        Assert.assertArrayEquals(sourceBytes, model.decompress(compressedBytes));
+
+        model = new FemtoZipCompressionModel();
+        model.setOptimalParsing(true);
+        testModel(PreambleString, PreambleDictionary, model, -1);
+        testModel(PreambleString, null, model, -1);
+        testBuiltModel(model, new byte[0], -1);
+        testBuiltModel(model, "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaab".getBytes(), -1);
+    }
+
     private static String dictionaryToString(byte[] dictionary) {
         int i = 0, count;
         for (i = 0, count = dictionary.length; i < count && dictionary[i] == 0; i++) {
@@ -95,6 +543,29 @@ public class CompressionTest {
         Assert.assertArrayEquals(sourceBytes, decompressedBytes);
     }
 
+    @Test
+    public void testDecompressMatches() throws IOException {
+        FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+        model.setDictionary("the quick brown fox".getBytes());
+        ArrayList<byte[]> documents = new ArrayList<byte[]>();
+        documents.add("brown fox jumps".getBytes());
+        model.build(new ArrayDocumentList(documents));
+        
+        StringBuilder run = new StringBuilder("x");
+        for (int i = 0; i < 600; i++) {
+            run.append('a');
+        }
+        
+        // Matches in the dictionary, running from the dictionary into the document,
+        // overlapping themselves, and documents growing the output several times
+        testBuiltModel(model, "the quick brown fox".getBytes(), -1);
+        testBuiltModel(model, "brown foxbrown foxbrown fox".getBytes(), -1);
+        testBuiltModel(model, "ababababababababababab".getBytes(), -1);
+        testBuiltModel(model, run.toString().getBytes(), -1);
+        testBuiltModel(model, (run.toString() + "the quick brown fox" + run.toString()).getBytes(), -1);
+        testBuiltModel(model, new byte[0], -1);
+    }
+    
     @Test
     public void testDocumentUniquenessScoring() throws IOException {
         CompressionModel model = new FemtoZipCompressionModel();
@@ -16,12 +16,15 @@
 package org.toubassi.femtozip;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
 
 import junit.framework.Assert;
 
 import org.junit.Test;
 import org.toubassi.femtozip.dictionary.DictionaryOptimizer;
+import org.toubassi.femtozip.dictionary.SuffixArray;
 
 
 public class DictionaryOptimizerTest {
@@ -56,4 +59,44 @@ public class DictionaryOptimizerTest {
         Assert.assertEquals("000011111", d);
     }
 
+    @Test
+    public void testSuffixArrayAlgorithms() throws IOException {
+        ArrayDocumentList documents = new ArrayDocumentList(CompressionTest.PreambleString, CompressionTest.PanamaString, "11111", "11111", "00000");
+        byte[] prefixDoubling = new DictionaryOptimizer(documents).optimize(64*1024, SuffixArray.Algorithm.PrefixDoubling);
+        byte[] sais = new DictionaryOptimizer(documents).optimize(64*1024, SuffixArray.Algorithm.SAIS);
+        Assert.assertTrue(Arrays.equals(prefixDoubling, sais));
+    }
+    
+    @Test
+    public void testParallelism() throws IOException {
+        String[] words = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "femtozip", "dictionary", "{\"id\":", "\"name\":", "},"};
+        Random random = new Random(1234);
+        ArrayList<byte[]> docs = new ArrayList<byte[]>();
+        for (int i = 0; i < 400; i++) {
+            StringBuilder doc = new StringBuilder();
+            for (int j = random.nextInt(60); j >= 0; j--) {
+                doc.append(words[random.nextInt(words.length)]).append(random.nextInt(4) == 0 ? random.nextInt(100) : " ");
+            }
+            docs.add(doc.toString().getBytes("UTF-8"));
+        }
+        ArrayDocumentList documents = new ArrayDocumentList(docs);
+        
+        for (int desiredLength : new int[] {100, 1000, 64*1024}) {
+            byte[] sequential = new DictionaryOptimizer(documents).optimize(desiredLength);
+            for (int parallelism : new int[] {2, 4}) {
+                DictionaryOptimizer optimizer = new DictionaryOptimizer(documents);
+                optimizer.setParallelism(parallelism);
+                Assert.assertTrue(Arrays.equals(sequential, optimizer.optimize(desiredLength)));
+                Assert.assertTrue(Arrays.equals(sequential, optimizer.optimize(desiredLength, SuffixArray.Algorithm.SAIS)));
+            }
+        }
+    }
+    
+    @Test
+    public void testEmptyDocuments() throws IOException {
+        byte[] dictionary = new DictionaryOptimizer(new ArrayDocumentList("garrick toubassi", "toubassi", "toubassi")).optimize(64*1024);
+        DictionaryOptimizer optimizer = new DictionaryOptimizer(new ArrayDocumentList("", "garrick toubassi", "", "", "toubassi", "", "toubassi", ""));
+        Assert.assertTrue(Arrays.equals(dictionary, optimizer.optimize(64*1024)));
+        Assert.assertEquals("toubassi", new String(optimizer.getSubstringBytes(optimizer.getSubstringCount() - 1), "UTF-8"));
+    }
 }
@@ -17,11 +17,15 @@ package org.toubassi.femtozip;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 import junit.framework.Assert;
 
 import org.junit.Test;
+import org.toubassi.femtozip.models.CompiledModel;
+import org.toubassi.femtozip.models.Compressor;
+import org.toubassi.femtozip.models.Decompressor;
 import org.toubassi.femtozip.models.GZipCompressionModel;
 import org.toubassi.femtozip.models.GZipDictionaryCompressionModel;
 import org.toubassi.femtozip.models.FemtoZipCompressionModel;
@@ -129,4 +133,61 @@ public class MultiThreadCompressionTest {
         testThreadedCompressionModel(new PureHuffmanCompressionModel());
         testThreadedCompressionModel(new VariableIntCompressionModel());
     }
+    
+    public static class CompiledModelThread extends Thread {
+        
+        int iterations;
+        CompiledModel model;
+        byte[][] documents;
+        Exception e;
+        
+        public CompiledModelThread(int iterations, CompiledModel model, byte[][] documents) {
+            this.iterations = iterations;
+            this.model = model;
+            this.documents = documents;
+        }
+        
+        public void run() {
+            try {
+                // Everything mutable belongs to this thread, only the compiled model is shared
+                Compressor compressor = model.createCompressor();
+                Decompressor decompressor = model.createDecompressor();
+                for (int i = 0; i < iterations; i++) {
+                    byte[] document = documents[i % documents.length];
+                    byte[] decompressed = decompressor.decompress(compressor.compress(document));
+                    if (!Arrays.equals(document, decompressed)) {
+                        throw new RuntimeException("Document " + new String(document) + " decompressed to " + new String(decompressed));
+                    }
+                }
+            }
+            catch (Exception e) {
+                this.e = e;
+            }
+        }
+    }
+    
+    /**
+     * Shares one CompiledModel between several threads, each with its own
+     * Compressor and Decompressor.  See CompiledModelBenchmark for how the
+     * throughput scales.
+     */
+    @Test
+    public void testCompiledModel() throws IOException, InterruptedException {
+        byte[][] documents = CompiledModelBenchmark.documents(200);
+        FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+        model.build(new ArrayDocumentList(new ArrayList<byte[]>(Arrays.asList(documents))));
+        CompiledModel compiled = model.getCompiledModel();
+        
+        ArrayList<CompiledModelThread> threads = new ArrayList<CompiledModelThread>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new CompiledModelThread(1000, compiled, documents));
+        }
+        for (CompiledModelThread thread : threads) {
+            thread.start();
+        }
+        for (CompiledModelThread thread : threads) {
+            thread.join();
+            Assert.assertNull("Exception in thread " + thread.getId() + " : " + thread.e, thread.e);
+        }
+    }
 }
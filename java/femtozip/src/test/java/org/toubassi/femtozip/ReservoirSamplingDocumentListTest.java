@@ -0,0 +1,110 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.toubassi.femtozip.dictionary.DictionaryOptimizer;
+import org.toubassi.femtozip.models.FemtoZipCompressionModel;
+
+public class ReservoirSamplingDocumentListTest {
+    
+    private static ArrayDocumentList numberedDocuments(int count) {
+        ArrayList<byte[]> documents = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            documents.add(("document " + i + " http://www.example.com/" + (i % 7)).getBytes());
+        }
+        return new ArrayDocumentList(documents);
+    }
+    
+    @Test
+    public void testSample() throws IOException {
+        ArrayDocumentList documents = numberedDocuments(10000);
+        long totalBytes = 0;
+        for (int i = 0; i < documents.size(); i++) {
+            totalBytes += documents.get(i).length;
+        }
+        
+        ReservoirSamplingDocumentList sample = new ReservoirSamplingDocumentList(documents, 20000);
+        Assert.assertEquals(10000, sample.getDocumentsSeen());
+        Assert.assertEquals(totalBytes, sample.getBytesSeen());
+        Assert.assertTrue(sample.getNumBytes() <= 20000 && sample.getNumBytes() > 19000);
+        Assert.assertEquals((double)sample.getNumBytes() / totalBytes, sample.getCoverage(), 1e-9);
+        
+        // Documents keep their order, and come from throughout the list
+        long sampledBytes = 0;
+        int previous = -1;
+        double meanIndex = 0;
+        for (int i = 0; i < sample.size(); i++) {
+            String document = new String(sample.get(i));
+            int index = Integer.parseInt(document.substring(9, document.indexOf(' ', 9)));
+            Assert.assertTrue(index > previous);
+            previous = index;
+            meanIndex += index / (double)sample.size();
+            sampledBytes += sample.get(i).length;
+        }
+        Assert.assertEquals(sample.getNumBytes(), sampledBytes);
+        Assert.assertEquals(5000, meanIndex, 500);
+    }
+    
+    @Test
+    public void testEverythingFits() throws IOException {
+        ArrayDocumentList documents = numberedDocuments(100);
+        ReservoirSamplingDocumentList sample = new ReservoirSamplingDocumentList(documents, 1 << 20, new Random(1));
+        Assert.assertEquals(100, sample.size());
+        Assert.assertEquals(1, sample.getCoverage(), 0);
+        for (int i = 0; i < documents.size(); i++) {
+            Assert.assertArrayEquals(documents.get(i), sample.get(i));
+        }
+        
+        // Documents larger than the whole sample are skipped
+        sample = new ReservoirSamplingDocumentList(new ArrayDocumentList("small", "much too large", "tiny"), 10);
+        Assert.assertEquals(2, sample.size());
+        Assert.assertEquals("small", new String(sample.get(0)));
+        Assert.assertEquals("tiny", new String(sample.get(1)));
+    }
+    
+    @Test
+    public void testDictionaryMemoryBudget() throws IOException {
+        ArrayDocumentList documents = numberedDocuments(10000);
+        FemtoZipCompressionModel model = new FemtoZipCompressionModel();
+        model.setDictionaryMemoryBudget(50000L * DictionaryOptimizer.BytesPerDocumentByte);
+        model.build(documents);
+        Assert.assertTrue(model.getDictionaryCoverage() < 0.2);
+        
+        byte[] data = documents.get(1234);
+        byte[] compressed = model.compress(data);
+        Assert.assertTrue(compressed.length < data.length / 2);
+        Assert.assertArrayEquals(data, model.decompress(compressed));
+        
+        // A dictionary built from every document, or supplied, covers everything
+        model.setDictionary(null);
+        model.setDictionaryMemoryBudget(0);
+        model.build(documents);
+        Assert.assertEquals(1, model.getDictionaryCoverage(), 0);
+        
+        model.setDictionaryMemoryBudget(50000L * DictionaryOptimizer.BytesPerDocumentByte);
+        model.setDictionary(null);
+        model.build(documents);
+        Assert.assertTrue(model.getDictionaryCoverage() < 0.2);
+        model.setDictionary("http://www.example.com/".getBytes());
+        Assert.assertEquals(1, model.getDictionaryCoverage(), 0);
+    }
+}
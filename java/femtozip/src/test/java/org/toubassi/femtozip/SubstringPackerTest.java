@@ -80,6 +80,22 @@ public class SubstringPackerTest {
         
     }
 
+    @Test
+    public void testOffsetOutOfRange() throws UnsupportedEncodingException {
+        VerboseStringCompressionModel model = new VerboseStringCompressionModel();
+        model.setDictionary("garrick".getBytes("UTF-8"));
+        Assert.assertEquals("gar", new String(model.decompress("<-7,3>".getBytes("UTF-8")), "UTF-8"));
+        for (String corrupt : new String[] {"<0,3>", "a<1,3>", "<-8,3>"}) {
+            try {
+                model.decompress(corrupt.getBytes("UTF-8"));
+                Assert.fail("Decompressed " + corrupt);
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().contains("out of range"));
+            }
+        }
+    }
+    
     
     private String pack(String s) {
         return pack(s, null);
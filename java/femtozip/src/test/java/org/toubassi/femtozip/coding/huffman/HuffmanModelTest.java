@@ -17,8 +17,13 @@ package org.toubassi.femtozip.coding.huffman;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 import junit.framework.Assert;
@@ -57,7 +62,35 @@ public class HuffmanModelTest {
         encoder.close();
         
         byte[] compressedBytes = bytesOut.toByteArray();
-        HuffmanDecoder decoder = new HuffmanDecoder(model, new ByteArrayInputStream(compressedBytes));
+        assertDecodes(data, new HuffmanDecoder(model, new ByteArrayInputStream(compressedBytes)));
+        
+        // The same bytes in the middle of a larger buffer, surrounded by garbage which
+        // the word at a time refill mustn't pick up.
+        byte[] padded = new byte[compressedBytes.length + 20];
+        Arrays.fill(padded, (byte)0xa5);
+        System.arraycopy(compressedBytes, 0, padded, 7, compressedBytes.length);
+        assertDecodes(data, new HuffmanDecoder(model, padded, 7, compressedBytes.length));
+        assertDecodes(data, new HuffmanDecoder(model, ByteBuffer.wrap(padded, 7, compressedBytes.length).slice()));
+        
+        // The packed code encodes the same bits, and decodes them
+        PackedHuffmanCode code = model.pack();
+        int eofSymbol = model.getCodewordForEOF().getSymbol();
+        BitOutput bitOut = new BitOutput(new byte[16], 0);
+        for (int i = 0, count = data.length; i < count; i++) {
+            code.encode(data[i], bitOut);
+        }
+        code.encode(eofSymbol, bitOut);
+        bitOut.flush();
+        Assert.assertTrue(Arrays.equals(compressedBytes, Arrays.copyOf(bitOut.getBytes(), bitOut.getLength())));
+        
+        HuffmanDecoder decoder = new HuffmanDecoder(compressedBytes, 0, compressedBytes.length);
+        for (int i = 0, count = data.length; i < count; i++) {
+            Assert.assertEquals(data[i], decoder.decodeSymbol(code));
+        }
+        Assert.assertEquals(eofSymbol, decoder.decodeSymbol(code));
+    }
+    
+    private void assertDecodes(int[] data, HuffmanDecoder decoder) throws IOException {
         ArrayList<Integer> decompressed = new ArrayList<Integer>();
         int symbol;
         while ((symbol = decoder.decodeSymbol()) != -1) {
@@ -70,6 +103,136 @@ public class HuffmanModelTest {
         }
     }
     
+    @Test(expected=EOFException.class)
+    public void testTruncatedInput() throws IOException {
+        byte[] dataBytes = "a man a plan a canal panama".getBytes("UTF-8");
+        FrequencyHuffmanModel model = new FrequencyHuffmanModel(FrequencyHuffmanModel.computeHistogramWithEOFSymbol(dataBytes), false);
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        HuffmanEncoder encoder = new HuffmanEncoder(model, bytesOut);
+        for (int i = 0, count = dataBytes.length; i < count; i++) {
+            encoder.encodeSymbol(((int)dataBytes[i]) & 0xff);
+        }
+        encoder.close();
+        
+        byte[] compressedBytes = bytesOut.toByteArray();
+        HuffmanDecoder decoder = new HuffmanDecoder(model, compressedBytes, 0, compressedBytes.length / 2);
+        while (decoder.decodeSymbol() != -1) {
+        }
+    }
+    
+    @Test
+    public void testLengthLimitedCodes() throws IOException {
+        // Fibonacci weights give the deepest possible Huffman tree
+        int[] histogram = new int[30];
+        histogram[0] = histogram[1] = 1;
+        for (int i = 2; i < histogram.length; i++) {
+            histogram[i] = histogram[i - 1] + histogram[i - 2];
+        }
+        
+        int[] data = new int[1000];
+        Random random = new Random(1234567);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt(histogram.length - 1);
+        }
+        
+        FrequencyHuffmanModel unlimited = new FrequencyHuffmanModel(histogram.clone(), true);
+        Assert.assertEquals(histogram.length - 1, maxBitLength(unlimited, histogram.length));
+        long unlimitedBits = totalBits(unlimited, histogram);
+        
+        for (int maxBitLength = 5; maxBitLength <= 12; maxBitLength++) {
+            FrequencyHuffmanModel model = new FrequencyHuffmanModel(histogram.clone(), true, maxBitLength);
+            Assert.assertEquals(maxBitLength, maxBitLength(model, histogram.length));
+            Assert.assertTrue(totalBits(model, histogram) >= unlimitedBits);
+            
+            // Complete, i.e. the Kraft sum is exactly 1
+            long kraft = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                kraft += 1L << (maxBitLength - model.encode(i).getBitLength());
+            }
+            Assert.assertEquals(1L << maxBitLength, kraft);
+            
+            testDataWithModel(data, model);
+        }
+        
+        // A limit above the Huffman code's depth changes nothing
+        FrequencyHuffmanModel model = new FrequencyHuffmanModel(histogram.clone(), true, 31);
+        Assert.assertEquals(unlimitedBits, totalBits(model, histogram));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testLengthLimitTooShort() {
+        new FrequencyHuffmanModel(new int[33], false, 5);
+    }
+    
+    private static int maxBitLength(FrequencyHuffmanModel model, int numSymbols) {
+        int maxBitLength = 0;
+        for (int i = 0; i < numSymbols; i++) {
+            maxBitLength = Math.max(maxBitLength, model.encode(i).getBitLength());
+        }
+        return maxBitLength;
+    }
+    
+    private static long totalBits(FrequencyHuffmanModel model, int[] histogram) {
+        long bits = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            bits += (long)histogram[i] * model.encode(i).getBitLength();
+        }
+        return bits;
+    }
+    
+    @Test
+    public void testCanonicalSerialization() throws IOException {
+        byte[] dataBytes = "a man a plan a canal panama".getBytes("UTF-8");
+        FrequencyHuffmanModel model = new FrequencyHuffmanModel(FrequencyHuffmanModel.computeHistogramWithEOFSymbol(dataBytes), false);
+        Assert.assertTrue(model.isCanonical());
+        
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        model.save(new DataOutputStream(bytesOut));
+        Assert.assertEquals(4 + 257, bytesOut.size());
+        
+        FrequencyHuffmanModel loaded = new FrequencyHuffmanModel(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+        Assert.assertTrue(loaded.isCanonical());
+        for (int i = 0; i < 257; i++) {
+            Assert.assertEquals(model.encode(i), loaded.encode(i));
+        }
+    }
+    
+    @Test
+    public void testNonCanonicalSerialization() throws IOException {
+        // The codes 1, 00, 01 (first bit first) in the original format
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytesOut);
+        out.writeInt(3);
+        int[][] codewords = {{1, 1, 0}, {0, 2, 1}, {2, 2, 2}};
+        for (int[] codeword : codewords) {
+            out.writeBoolean(true);
+            out.writeInt(codeword[0]);
+            out.writeInt(codeword[1]);
+            out.writeInt(codeword[2]);
+        }
+        byte[] saved = bytesOut.toByteArray();
+        
+        // Loads as it was, and saves in the same format so previously compressed data still decodes
+        FrequencyHuffmanModel model = new FrequencyHuffmanModel(new DataInputStream(new ByteArrayInputStream(saved)));
+        Assert.assertFalse(model.isCanonical());
+        Assert.assertEquals(0, model.decode(1).getSymbol());
+        Assert.assertEquals(1, model.decode(0).getSymbol());
+        Assert.assertEquals(2, model.decode(2).getSymbol());
+        
+        bytesOut = new ByteArrayOutputStream();
+        model.save(new DataOutputStream(bytesOut));
+        Assert.assertTrue(Arrays.equals(saved, bytesOut.toByteArray()));
+    }
+    
+    @Test(expected=IOException.class)
+    public void testOversubscribedCodeLengths() throws IOException {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytesOut);
+        out.writeInt(-3);
+        out.write(new byte[] {1, 1, 2});
+        new FrequencyHuffmanModel(new DataInputStream(new ByteArrayInputStream(bytesOut.toByteArray())));
+    }
+    
     @Test
     public void testNestedDecodingTables() throws IOException {
         Random random = new Random(1234567);
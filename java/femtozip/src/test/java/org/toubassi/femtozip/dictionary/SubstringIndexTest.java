@@ -0,0 +1,84 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.dictionary;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SubstringIndexTest {
+
+    @Test
+    public void testMatchesIndexOf() {
+        Random random = new Random(42);
+        byte[] bytes = new byte[20000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)('a' + random.nextInt(3));
+        }
+        int[] suffixArray = SuffixArray.computeSuffixArray(bytes);
+
+        // Keep the picked strings an antichain the way DictionaryOptimizer does,
+        // checking every lookup against comparing with each picked string.
+        SubstringIndex index = new SubstringIndex(bytes, suffixArray, null);
+        SubstringArray picked = new SubstringArray(16);
+        int[] slots = new int[0];
+        SubstringArray candidate = new SubstringArray(1);
+        for (int n = 0; n < 3000; n++) {
+            int length = 1 + random.nextInt(12);
+            int i = 1 + random.nextInt(suffixArray.length - 1);
+            if (suffixArray[i] + length > bytes.length) {
+                continue;
+            }
+            candidate.setScore(0, i, length, 0);
+
+            boolean covered = false;
+            for (int j = 0; j < picked.size(); j++) {
+                covered |= picked.indexOf(j, candidate, 0, bytes, suffixArray) != -1;
+            }
+            Assert.assertEquals(covered, index.covers(i, length));
+            if (covered) {
+                continue;
+            }
+
+            int[] contained = index.containedIn(i, length);
+            Arrays.sort(contained);
+            int numExpected = 0;
+            for (int j = picked.size() - 1; j >= 0; j--) {
+                if (candidate.indexOf(0, picked, j, bytes, suffixArray) != -1) {
+                    Assert.assertTrue(Arrays.binarySearch(contained, slots[j]) >= 0);
+                    index.remove(slots[j]);
+                    picked.remove(j);
+                    System.arraycopy(slots, j + 1, slots, j, slots.length - j - 1);
+                    numExpected++;
+                }
+            }
+            Assert.assertEquals(numExpected, contained.length);
+
+            slots = Arrays.copyOf(slots, picked.size() + 1);
+            slots[picked.size()] = index.add(i, length, n);
+            picked.setScore(picked.size(), i, length, n);
+        }
+
+        SubstringArray survivors = index.toSubstringArray();
+        Assert.assertEquals(picked.size(), survivors.size());
+        for (int j = 0; j < picked.size(); j++) {
+            Assert.assertEquals(picked.index(j), survivors.index(j));
+            Assert.assertEquals(picked.length(j), survivors.length(j));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.dictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.toubassi.femtozip.util.FileUtil;
+
+/**
+ * Compares the time to compute suffix arrays with each SuffixArray.Algorithm
+ * on repetitive log-like data, random data, and any files named on the
+ * command line.
+ *
+ * Run after mvn test-compile with
+ * java -cp target/classes:target/test-classes org.toubassi.femtozip.dictionary.SuffixArrayBenchmark [files]
+ */
+public class SuffixArrayBenchmark {
+    
+    private static final int Length = 16 * 1024 * 1024;
+    
+    public static void main(String[] args) throws IOException {
+        benchmark("repetitive", repetitive(Length, new Random(1)));
+        benchmark("random", random(Length, new Random(1)));
+        for (String path : args) {
+            benchmark(path, FileUtil.readFile(new File(path)));
+        }
+    }
+    
+    /**
+     * Log lines which differ only in a few fields, with runs of identical lines.
+     */
+    static byte[] repetitive(int length, Random random) {
+        StringBuilder s = new StringBuilder(length + 200);
+        String[] levels = {"INFO", "INFO", "INFO", "WARN", "ERROR"};
+        String line = "";
+        while (s.length() < length) {
+            if (random.nextInt(4) != 0) {
+                line = String.format("2011-06-%02d 12:00:00 %s [request-handler] GET /api/v1/users/%d/status 200 OK\n",
+                        1 + random.nextInt(28), levels[random.nextInt(levels.length)], random.nextInt(100));
+            }
+            s.append(line);
+        }
+        return s.substring(0, length).getBytes();
+    }
+    
+    static byte[] random(int length, Random random) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+    
+    private static void benchmark(String name, byte[] bytes) {
+        System.out.println(name + ": " + bytes.length + " bytes");
+        for (SuffixArray.Algorithm algorithm : SuffixArray.Algorithm.values()) {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                SuffixArray.computeSuffixArray(bytes, algorithm);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(String.format("  %-22s %8.0f ms %8.1f MB/s", algorithm, best / 1e6, bytes.length / 1.048576 / (best / 1000.0)));
+        }
+        System.out.println();
+    }
+}
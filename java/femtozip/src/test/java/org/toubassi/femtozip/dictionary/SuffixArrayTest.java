@@ -0,0 +1,80 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.dictionary;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SuffixArrayTest {
+    
+    @Test
+    public void testSAISMatchesPrefixDoubling() {
+        Random random = new Random(1234567);
+        for (int length = 1; length < 300; length++) {
+            // Binary, small alphabets (lots of repeats and deep recursion) and runs
+            for (int alphabet : new int[] {256, 4, 2, 1}) {
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = (byte)(random.nextInt(alphabet) - (alphabet == 256 ? 128 : 0));
+                }
+                assertSAISMatches(bytes);
+            }
+        }
+        assertSAISMatches("a man a plan a canal panama".getBytes());
+        assertSAISMatches(SuffixArrayBenchmark.repetitive(100000, new Random(1)));
+        assertSAISMatches(SuffixArrayBenchmark.random(100000, new Random(1)));
+    }
+    
+    @Test
+    public void testParallelMatchesSequential() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Random random = new Random(7654321);
+            for (int length = 1; length < 300; length += 7) {
+                for (int alphabet : new int[] {256, 4, 1}) {
+                    byte[] bytes = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        bytes[i] = (byte)(random.nextInt(alphabet) - (alphabet == 256 ? 128 : 0));
+                    }
+                    assertParallelMatches(bytes, pool);
+                }
+            }
+            assertParallelMatches(SuffixArrayBenchmark.repetitive(200000, new Random(1)), pool);
+            assertParallelMatches(SuffixArrayBenchmark.random(200000, new Random(1)), pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testEmpty() {
+        Assert.assertArrayEquals(new int[] {0}, SuffixArray.computeSuffixArraySAIS(new byte[0]));
+    }
+    
+    private static void assertSAISMatches(byte[] bytes) {
+        Assert.assertArrayEquals(SuffixArray.computeSuffixArray(bytes), SuffixArray.computeSuffixArraySAIS(bytes));
+    }
+    
+    private static void assertParallelMatches(byte[] bytes, ForkJoinPool pool) {
+        int[] suffixArray = SuffixArray.computeSuffixArray(bytes);
+        Assert.assertArrayEquals(suffixArray, SuffixArray.computeSuffixArrayParallel(bytes, pool));
+        Assert.assertArrayEquals(SuffixArray.computeLCP(bytes, suffixArray), SuffixArray.computeLCP(bytes, suffixArray, pool));
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ *   Copyright 2011 Garrick Toubassi
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.toubassi.femtozip.substring;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.toubassi.femtozip.util.FileUtil;
+
+/**
+ * Compares the PrefixHash hashing schemes (see PrefixHash(byte[], boolean, int, int))
+ * on a text and a binary corpus, plus any files named on the command line.
+ * For each it reports how long the chains a lookup walks are, how many of
+ * those entries are collisions (a different 4 byte prefix, so they can't
+ * match), and the throughput of hashing and of packing with a dictionary.
+ *
+ * Run after mvn test-compile with
+ * java -cp target/classes:target/test-classes org.toubassi.femtozip.substring.PrefixHashBenchmark [files]
+ */
+public class PrefixHashBenchmark {
+
+    private static final int[] Schemes = {0, 12, 16, 20};
+
+    public static void main(String[] args) throws IOException {
+        benchmark("text", textCorpus());
+        benchmark("binary", binaryCorpus());
+        for (String path : args) {
+            byte[] bytes = FileUtil.readFile(new File(path));
+            ArrayList<byte[]> documents = new ArrayList<byte[]>();
+            for (int i = 0; i < bytes.length; i += 4096) {
+                documents.add(Arrays.copyOfRange(bytes, i, Math.min(bytes.length, i + 4096)));
+            }
+            benchmark(path, documents);
+        }
+    }
+
+    private static ArrayList<byte[]> textCorpus() {
+        Random random = new Random(1);
+        String[] words = {"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "name", "value", "id", "status", "active", "user", "count", "time"};
+        ArrayList<byte[]> documents = new ArrayList<byte[]>();
+        for (int i = 0; i < 4000; i++) {
+            StringBuilder doc = new StringBuilder("{");
+            for (int j = 0, fields = 10 + random.nextInt(20); j < fields; j++) {
+                doc.append('"').append(words[random.nextInt(words.length)]).append("\":\"");
+                for (int k = random.nextInt(6); k >= 0; k--) {
+                    doc.append(words[random.nextInt(words.length)]).append(' ');
+                }
+                doc.append(random.nextInt(1000)).append("\",");
+            }
+            documents.add(doc.append('}').toString().getBytes());
+        }
+        return documents;
+    }
+
+    private static ArrayList<byte[]> binaryCorpus() {
+        // Little endian records of counters, timestamps, flags and floats, where
+        // the byte which varies most is often the 4th of a prefix.
+        Random random = new Random(1);
+        ArrayList<byte[]> documents = new ArrayList<byte[]>();
+        int id = 0;
+        long timestamp = 1300000000000L;
+        for (int i = 0; i < 4000; i++) {
+            ByteBuffer doc = ByteBuffer.allocate(32 * (8 + random.nextInt(32))).order(ByteOrder.LITTLE_ENDIAN);
+            while (doc.remaining() >= 32) {
+                doc.putInt(id++);
+                doc.putLong(timestamp += random.nextInt(1 << 20));
+                doc.putShort((short)random.nextInt(4));
+                doc.putShort((short)(random.nextInt(3) << 8));
+                doc.putFloat(random.nextInt(100) / 4.0f);
+                doc.putInt(random.nextInt(256) << 24);
+                doc.putLong(random.nextInt(16) * 0x0101010101010101L);
+            }
+            documents.add(doc.array());
+        }
+        return documents;
+    }
+
+    private static void benchmark(String name, ArrayList<byte[]> documents) {
+        int length = 0;
+        for (byte[] document : documents) {
+            length += document.length;
+        }
+        byte[] corpus = new byte[length];
+        int offset = 0;
+        for (byte[] document : documents) {
+            System.arraycopy(document, 0, corpus, offset, document.length);
+            offset += document.length;
+        }
+        // The last 64k of the first half of the corpus stands in for a dictionary
+        int dictionaryEnd = corpus.length / 2;
+        byte[] dictionary = Arrays.copyOfRange(corpus, Math.max(0, dictionaryEnd - 65536), dictionaryEnd);
+
+        System.out.println(name + ": " + documents.size() + " documents, " + length + " bytes");
+        System.out.println("  bits    avg chain  collisions  max chain   hash MB/s   pack MB/s");
+        for (int hashBits : Schemes) {
+            PrefixHash hash = new PrefixHash(dictionary, true, 9, hashBits);
+            ChainStats stats = chainStats(hash, dictionary);
+
+            // Hash documents the way SubstringPacker does, reusing one PrefixHash
+            PrefixHash documentHash = new PrefixHash(new byte[0], false, 9, hashBits);
+            long best = Long.MAX_VALUE;
+            int hashed = 0;
+            for (int i = 0; i < 10; i++) {
+                long start = System.nanoTime();
+                hashed = 0;
+                for (int j = documents.size() / 2; j < documents.size(); j++) {
+                    byte[] document = documents.get(j);
+                    documentHash.reset(document);
+                    for (int k = 0, count = document.length - PrefixHash.PrefixLength; k < count; k++) {
+                        documentHash.put(k);
+                    }
+                    hashed += document.length;
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            double hashRate = hashed / 1.048576 / (best / 1000.0);
+
+            SubstringPacker packer = new SubstringPacker(dictionary, 6, hashBits);
+            SubstringPacker.Consumer consumer = new SubstringPacker.Consumer() {
+                public void encodeLiteral(int aByte, Object context) {
+                }
+                public void encodeSubstring(int offset, int length, Object context) {
+                }
+                public void endEncoding(Object context) {
+                }
+            };
+            best = Long.MAX_VALUE;
+            int packed = 0;
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                packed = 0;
+                for (int j = documents.size() / 2; j < documents.size(); j++) {
+                    packer.pack(documents.get(j), consumer, null);
+                    packed += documents.get(j).length;
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            double packRate = packed / 1.048576 / (best / 1000.0);
+
+            System.out.println(String.format("  %-6s %10.1f %10.1f%% %10d %11.1f %11.1f", hashBits == 0 ? "legacy" : Integer.toString(hashBits),
+                    stats.averageChain, 100.0 * stats.collisions, stats.maxChain, hashRate, packRate));
+        }
+        System.out.println();
+    }
+
+    private static class ChainStats {
+        double averageChain;    // Entries walked by a lookup of a hashed position, i.e. its bucket's size
+        double collisions;      // Fraction of those with a different prefix
+        int maxChain;
+    }
+
+    private static ChainStats chainStats(PrefixHash hash, byte[] buf) {
+        ChainStats stats = new ChainStats();
+        long walked = 0;
+        long matching = 0;
+        long lookups = 0;
+        HashMap<Integer, Integer> prefixCounts = new HashMap<Integer, Integer>();
+        for (int bucket = 0; bucket < hash.hash.length; bucket++) {
+            prefixCounts.clear();
+            int size = 0;
+            for (int candidate = hash.hash[bucket]; candidate >= hash.generation; candidate = hash.heap[candidate - hash.generation]) {
+                int i = candidate - hash.generation;
+                Integer prefix = (buf[i] & 0xff) | ((buf[i + 1] & 0xff) << 8) | ((buf[i + 2] & 0xff) << 16) | ((buf[i + 3] & 0xff) << 24);
+                Integer count = prefixCounts.get(prefix);
+                prefixCounts.put(prefix, count == null ? 1 : count + 1);
+                size++;
+            }
+            for (Integer count : prefixCounts.values()) {
+                matching += (long)count * count;
+            }
+            walked += (long)size * size;
+            lookups += size;
+            stats.maxChain = Math.max(stats.maxChain, size);
+        }
+        stats.averageChain = lookups == 0 ? 0 : (double)walked / lookups;
+        stats.collisions = walked == 0 ? 0 : 1.0 - (double)matching / walked;
+        return stats;
+    }
+}
@@ -16,6 +16,7 @@
 package org.toubassi.femtozip.substring;
 
 import java.io.IOException;
+import java.util.Random;
 
 import junit.framework.Assert;
 
@@ -56,6 +57,45 @@ public class PrefixHashTest {
         Assert.assertEquals(5, match.bestMatchLength);
     }
 
+    @Test
+    public void testPackedMatch() throws IOException {
+        byte[] bytes = "a man a clan a canal panama".getBytes("UTF-8");
+        PrefixHash hash = new PrefixHash(bytes, true);
+        
+        byte[] targetBytes = "xxx a ca".getBytes("UTF-8");
+        long match = hash.bestMatch(3, targetBytes);
+        Assert.assertEquals(12, Match.index(match));
+        Assert.assertEquals(5, Match.length(match));
+        
+        match = hash.bestMatch(0, "blah!".getBytes("UTF-8"));
+        Assert.assertEquals(0, Match.index(match));
+        Assert.assertEquals(0, Match.length(match));
+        
+        match = Match.pack(65535, 255);
+        Assert.assertEquals(65535, Match.index(match));
+        Assert.assertEquals(255, Match.length(match));
+    }
+
+    @Test
+    public void testMatches() throws IOException {
+        byte[] bytes = "abcdX abcdeY abcdZ".getBytes("UTF-8");
+        PrefixHash hash = new PrefixHash(bytes, true);
+
+        byte[] targetBytes = "abcdef".getBytes("UTF-8");
+        long[] matches = new long[256];
+        int numMatches = hash.matches(0, targetBytes, PrefixHash.wordView(targetBytes), matches);
+
+        // The nearest match of each length, nearest first
+        Assert.assertEquals(2, numMatches);
+        Assert.assertEquals(13, Match.index(matches[0]));
+        Assert.assertEquals(4, Match.length(matches[0]));
+        Assert.assertEquals(6, Match.index(matches[1]));
+        Assert.assertEquals(5, Match.length(matches[1]));
+
+        targetBytes = "blah!".getBytes("UTF-8");
+        Assert.assertEquals(0, hash.matches(0, targetBytes, PrefixHash.wordView(targetBytes), matches));
+    }
+
     @Test
     public void testMatchMiss() throws IOException {
         String str = "a man a clan a canal panama";
@@ -71,4 +111,125 @@ public class PrefixHashTest {
         Assert.assertEquals(0, match.bestMatchLength);
     }
 
+    @Test
+    public void testMultiplicativeHash() throws IOException {
+        byte[] bytes = "a man a clan a canal panama".getBytes("UTF-8");
+        PrefixHash hash = new PrefixHash(bytes, true, 9, 8);
+        Assert.assertEquals(8, hash.getHashBits());
+        Assert.assertEquals(256, hash.hash.length);
+        
+        long match = hash.bestMatch(3, "xxx a ca".getBytes("UTF-8"));
+        Assert.assertEquals(12, Match.index(match));
+        Assert.assertEquals(5, Match.length(match));
+        
+        // Prefixes differing only in their 4th byte hash apart
+        byte[] binary = {1, 2, 3, 4, 9, 1, 2, 3, 5, 0};
+        hash = new PrefixHash(binary, true, 9, 16);
+        match = hash.bestMatch(0, new byte[] {1, 2, 3, 5, 7});
+        Assert.assertEquals(5, Match.index(match));
+        Assert.assertEquals(4, Match.length(match));
+        
+        // Per document tables are sized to the document, up to 2^hashBits
+        hash = new PrefixHash(binary, false, 9, 16);
+        Assert.assertEquals(32, hash.hash.length);
+        hash.reset(new byte[100000]);
+        Assert.assertEquals(1 << 16, hash.hash.length);
+        hash.reset(binary);
+        for (int i = 0; i < binary.length - PrefixHash.PrefixLength; i++) {
+            hash.put(i);
+        }
+        match = hash.bestMatch(0, new byte[] {1, 2, 3, 5, 7});
+        Assert.assertEquals(5, Match.index(match));
+        Assert.assertEquals(4, Match.length(match));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testHashBitsOutOfRange() {
+        new PrefixHash(new byte[0], false, 9, PrefixHash.MaxHashBits + 1);
+    }
+    
+    @Test
+    public void testCompressionLevelLimitsChainWalk() throws IOException {
+        StringBuilder s = new StringBuilder("abcde");
+        for (int i = 0; i < 20; i++) {
+            s.append("abcdX");
+        }
+        s.append("abcde");
+        byte[] bytes = s.toString().getBytes("UTF-8");
+        int target = bytes.length - 5;
+        
+        PrefixHash hash = new PrefixHash(bytes, false);
+        PrefixHash fastHash = new PrefixHash(bytes, false, 0);
+        for (int i = 0; i < target; i++) {
+            hash.put(i);
+            fastHash.put(i);
+        }
+        
+        // The only 5 byte match is at the very end of the chain
+        Match match = hash.getBestMatch(target, bytes);
+        Assert.assertEquals(0, match.bestMatchIndex);
+        Assert.assertEquals(5, match.bestMatchLength);
+
+        // Level 0 gives up before reaching it, and settles for a nearer 4 byte match
+        match = fastHash.getBestMatch(target, bytes);
+        Assert.assertEquals(4, match.bestMatchLength);
+        Assert.assertTrue(match.bestMatchIndex > 0);
+    }
+
+    @Test
+    public void testResetForgetsPreviousBuffer() throws IOException {
+        byte[] first = "a man a clan a canal panama".getBytes("UTF-8");
+        byte[] second = "xxxx canal canal".getBytes("UTF-8");
+        
+        PrefixHash hash = new PrefixHash(first, false);
+        for (int i = 0; i < first.length - PrefixHash.PrefixLength; i++) {
+            hash.put(i);
+        }
+        
+        // "canal" was put for the first buffer, but must not be found after a reset
+        hash.reset(second);
+        Match match = hash.getBestMatch(5, second);
+        Assert.assertEquals(0, match.bestMatchLength);
+        
+        for (int i = 0; i < 11; i++) {
+            hash.put(i);
+        }
+        match = hash.getBestMatch(11, second);
+        Assert.assertEquals(5, match.bestMatchIndex);
+        Assert.assertEquals(5, match.bestMatchLength);
+        
+        // Growing past the original capacity reallocates and still works
+        byte[] third = "a man a clan a canal panama, a man a clan a canal panama".getBytes("UTF-8");
+        hash.reset(third);
+        for (int i = 0; i < 29; i++) {
+            hash.put(i);
+        }
+        match = hash.getBestMatch(29, third);
+        Assert.assertEquals(0, match.bestMatchIndex);
+        Assert.assertEquals(27, match.bestMatchLength);
+    }
+
+    @Test
+    public void testLongMatches() throws IOException {
+        Random random = new Random(1234567);
+        byte[] bytes = new byte[300];
+        random.nextBytes(bytes);
+        PrefixHash hash = new PrefixHash(bytes, true);
+        
+        // Mismatch at every offset, so we cover mismatches in every byte of a word as well as the tail
+        for (int mismatch = PrefixHash.PrefixLength; mismatch < 270; mismatch++) {
+            byte[] target = bytes.clone();
+            target[mismatch]++;
+            
+            long match = hash.bestMatch(0, target);
+            Assert.assertEquals(0, Match.index(match));
+            Assert.assertEquals(Math.min(255, mismatch), Match.length(match));
+            
+            if (mismatch >= 3 + PrefixHash.PrefixLength) {
+                match = hash.bestMatch(3, target, PrefixHash.wordView(target));
+                Assert.assertEquals(3, Match.index(match));
+                Assert.assertEquals(Math.min(255, mismatch - 3), Match.length(match));
+            }
+        }
+    }
 }